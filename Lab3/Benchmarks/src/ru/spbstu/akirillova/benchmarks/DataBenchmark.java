@@ -0,0 +1,62 @@
+package ru.spbstu.akirillova.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.spbstu.akirillova.utils.BufferPool;
+import ru.spbstu.akirillova.utils.Data;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataBenchmark {
+
+    @Param({"3", "4096", "65536", "4194304"})
+    public int chunkSize;
+
+    @Param({"heap", "direct"})
+    public String storage;
+
+    private Data data;
+    private byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = new Data(Data.Storage.fromString(storage));
+        chunk = Fixtures.randomBytes(chunkSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        data.Free();
+        BufferPool.DIRECT.Purge();
+    }
+
+    @Benchmark
+    public void pushBackExtractBytes(Blackhole bh) {
+        data.PushBack(chunk, chunk.length);
+        byte[] out = data.ExtractBytes();
+        bh.consume(out);
+        BufferPool.BYTES.Release(out);
+    }
+
+    @Benchmark
+    public void pushBackExtractShorts(Blackhole bh) {
+        data.PushBack(chunk, chunk.length);
+        short[] out = data.ExtractShorts();
+        bh.consume(out);
+        BufferPool.SHORTS.Release(out);
+    }
+
+    @Benchmark
+    public void pushBackExtractChars(Blackhole bh) {
+        data.PushBack(chunk, chunk.length);
+        char[] out = data.ExtractChars();
+        bh.consume(out);
+        BufferPool.CHARS.Release(out);
+    }
+}
@@ -0,0 +1,121 @@
+package ru.spbstu.akirillova.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.spbstu.akirillova.utils.BufferPool;
+import ru.spbstu.akirillova.utils.IBufferMediator;
+import ru.spbstu.akirillova.workers.FileReader;
+import ru.spbstu.pipeline.*;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileReaderBenchmark {
+
+    @Param({"BYTE", "SHORT", "CHAR", "BUFFER"})
+    public String mediator;
+
+    @Param({"stream", "mmap"})
+    public String readMode;
+
+    @Param({"3", "4096", "65536", "4194304"})
+    public int bufferSize;
+
+    @Param({"1048576", "16777216"})
+    public long inputSize;
+
+    private Fixtures fixtures;
+    private String inputFile;
+    private String configFile;
+    private Logger logger;
+
+    class Sink implements IConsumer {
+        private final Blackhole bh;
+        private IMediator arrayMediator;
+        private IBufferMediator bufferMediator;
+
+        Sink(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public RC execute() {
+            if (bufferMediator != null) {
+                ByteBuffer buffer = bufferMediator.getBuffer();
+                if (buffer != null) {
+                    bh.consume(buffer);
+                    bufferMediator.release();
+                }
+                return RC.CODE_SUCCESS;
+            }
+
+            Object data = arrayMediator.getData();
+            bh.consume(data);
+            if (data instanceof byte[]) {
+                BufferPool.BYTES.Release((byte[]) data);
+            } else if (data instanceof short[]) {
+                BufferPool.SHORTS.Release((short[]) data);
+            } else if (data instanceof char[]) {
+                BufferPool.CHARS.Release((char[]) data);
+            }
+            return RC.CODE_SUCCESS;
+        }
+
+        @Override
+        public RC setConsumer(IConsumer consumer) {
+            return RC.CODE_SUCCESS;
+        }
+
+        @Override
+        public RC setProducer(IProducer producer) {
+            if (mediator.equals("BUFFER")) {
+                bufferMediator = ((FileReader) producer).getBufferMediator();
+            } else {
+                arrayMediator = producer.getMediator(TYPE.valueOf(mediator));
+            }
+            if (bufferMediator == null && arrayMediator == null) {
+                return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+            }
+            return RC.CODE_SUCCESS;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        logger = Logger.getLogger("bench");
+        logger.setLevel(java.util.logging.Level.WARNING);
+        fixtures = new Fixtures();
+        inputFile = fixtures.writeRandom("input.bin", inputSize);
+        configFile = fixtures.writeText("reader_config.txt",
+                "buffer_size = " + bufferSize + "\nread_mode = " + readMode + "\n");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixtures.delete();
+    }
+
+    @Benchmark
+    public RC readFile(Blackhole bh) throws IOException {
+        try (FileInputStream in = new FileInputStream(inputFile);
+             FileReader reader = new FileReader(logger)) {
+            Fixtures.check(reader.setConfig(configFile), "reader config");
+            Fixtures.check(reader.setInputStream(in), "input stream");
+
+            Sink sink = new Sink(bh);
+            Fixtures.check(reader.setConsumer(sink), "reader consumer");
+            Fixtures.check(sink.setProducer(reader), "sink producer");
+
+            return Fixtures.check(reader.execute(), "reader");
+        }
+    }
+}
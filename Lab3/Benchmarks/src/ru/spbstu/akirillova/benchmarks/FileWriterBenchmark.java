@@ -0,0 +1,114 @@
+package ru.spbstu.akirillova.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.spbstu.akirillova.utils.BufferPool;
+import ru.spbstu.akirillova.workers.FileWriter;
+import ru.spbstu.pipeline.*;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileWriterBenchmark {
+
+    private static final int CHUNK_SIZE = 65536;
+
+    @Param({"stream", "channel"})
+    public String writeMode;
+
+    @Param({"3", "4096", "65536", "4194304"})
+    public int bufferSize;
+
+    @Param({"1048576", "16777216"})
+    public long inputSize;
+
+    private Fixtures fixtures;
+    private String outputFile;
+    private String configFile;
+    private Logger logger;
+    private byte[] chunk;
+
+    class Source implements IProducer {
+        private long remaining;
+        private boolean isEnd;
+
+        Source(long size) {
+            this.remaining = size;
+        }
+
+        boolean HasMore() {
+            return !isEnd;
+        }
+
+        @Override
+        public TYPE[] getOutputTypes() {
+            return new TYPE[] {TYPE.BYTE};
+        }
+
+        @Override
+        public IMediator getMediator(TYPE type) {
+            return () -> {
+                if (remaining == 0) {
+                    isEnd = true;
+                    return null;
+                }
+                int size = (int) Math.min(chunk.length, remaining);
+                remaining -= size;
+                byte[] out = BufferPool.BYTES.Borrow(size);
+                System.arraycopy(chunk, 0, out, 0, size);
+                return out;
+            };
+        }
+
+        @Override
+        public RC setConsumer(IConsumer consumer) {
+            return RC.CODE_SUCCESS;
+        }
+
+        @Override
+        public RC setProducer(IProducer producer) {
+            return RC.CODE_SUCCESS;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        logger = Logger.getLogger("bench");
+        logger.setLevel(java.util.logging.Level.WARNING);
+        fixtures = new Fixtures();
+        outputFile = fixtures.file("output.bin").getPath();
+        configFile = fixtures.writeText("writer_config.txt",
+                "buffer_size = " + bufferSize + "\nwrite_mode = " + writeMode + "\n");
+        chunk = Fixtures.randomBytes(CHUNK_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixtures.delete();
+    }
+
+    @Benchmark
+    public RC writeFile() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(outputFile);
+             FileWriter writer = new FileWriter(logger)) {
+            Fixtures.check(writer.setConfig(configFile), "writer config");
+            Fixtures.check(writer.setOutputStream(out), "output stream");
+
+            Source source = new Source(inputSize);
+            Fixtures.check(writer.setProducer(source), "writer producer");
+
+            RC rc = RC.CODE_SUCCESS;
+            while (rc == RC.CODE_SUCCESS && source.HasMore()) {
+                rc = writer.execute();
+            }
+            return Fixtures.check(rc, "writer");
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ru.spbstu.akirillova.benchmarks;
+
+import ru.spbstu.pipeline.RC;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Random;
+
+class Fixtures {
+
+    static final String TABLE =
+            "0x63 -> 0x44\n" +
+            "0x43 -> 0x64\n" +
+            "0x41 -> 0x6F\n" +
+            "0x61 -> 0x4F\n" +
+            "0x54 -> 0x67\n" +
+            "0x74 -> 0x47\n";
+
+    private final File dir;
+
+    Fixtures() throws IOException {
+        dir = Files.createTempDirectory("pipeline-bench").toFile();
+    }
+
+    File file(String name) {
+        return new File(dir, name);
+    }
+
+    String writeText(String name, String content) throws IOException {
+        File f = file(name);
+        try (PrintWriter out = new PrintWriter(f)) {
+            out.print(content);
+        }
+        return f.getPath();
+    }
+
+    String writeRandom(String name, long size) throws IOException {
+        File f = file(name);
+        byte[] block = randomBytes(1 << 20);
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return f.getPath();
+    }
+
+    void delete() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    // Fails the trial instead of timing a pipeline that did nothing
+    static RC check(RC rc, String step) {
+        if (rc != RC.CODE_SUCCESS) {
+            throw new IllegalStateException(step + " failed: " + rc);
+        }
+        return rc;
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,84 @@
+package ru.spbstu.akirillova.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.spbstu.akirillova.workers.FileReader;
+import ru.spbstu.akirillova.workers.FileWriter;
+import ru.spbstu.akirillova.workers.Substitutor;
+import ru.spbstu.pipeline.*;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param({"3", "4096", "65536", "4194304"})
+    public int bufferSize;
+
+    @Param({"1048576", "16777216"})
+    public long inputSize;
+
+    @Param({"stream", "mmap"})
+    public String readMode;
+
+    @Param({"stream", "channel"})
+    public String writeMode;
+
+    private Fixtures fixtures;
+    private String inputFile;
+    private String outputFile;
+    private String readerConfig;
+    private String substitutorConfig;
+    private String writerConfig;
+    private Logger logger;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        logger = Logger.getLogger("bench");
+        logger.setLevel(java.util.logging.Level.WARNING);
+        fixtures = new Fixtures();
+        inputFile = fixtures.writeRandom("input.bin", inputSize);
+        outputFile = fixtures.file("output.bin").getPath();
+        readerConfig = fixtures.writeText("reader_config.txt",
+                "buffer_size = " + bufferSize + "\nread_mode = " + readMode + "\n");
+        substitutorConfig = fixtures.writeText("substitutor_config.txt",
+                "table_file = " + fixtures.writeText("table.txt", Fixtures.TABLE) + "\n");
+        writerConfig = fixtures.writeText("writer_config.txt",
+                "buffer_size = " + bufferSize + "\nwrite_mode = " + writeMode + "\n");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixtures.delete();
+    }
+
+    @Benchmark
+    public RC runPipeline() throws IOException {
+        try (FileInputStream in = new FileInputStream(inputFile);
+             FileOutputStream out = new FileOutputStream(outputFile);
+             FileReader reader = new FileReader(logger);
+             Substitutor substitutor = new Substitutor(logger);
+             FileWriter writer = new FileWriter(logger)) {
+            Fixtures.check(reader.setConfig(readerConfig), "reader config");
+            Fixtures.check(substitutor.setConfig(substitutorConfig), "substitutor config");
+            Fixtures.check(writer.setConfig(writerConfig), "writer config");
+            Fixtures.check(reader.setInputStream(in), "input stream");
+            Fixtures.check(writer.setOutputStream(out), "output stream");
+
+            Fixtures.check(reader.setConsumer(substitutor), "reader consumer");
+            Fixtures.check(substitutor.setProducer(reader), "substitutor producer");
+            Fixtures.check(substitutor.setConsumer(writer), "substitutor consumer");
+            Fixtures.check(writer.setProducer(substitutor), "writer producer");
+
+            return Fixtures.check(reader.execute(), "pipeline");
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ru.spbstu.akirillova.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.spbstu.akirillova.workers.SubstitutionTable;
+import ru.spbstu.pipeline.RC;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubstitutionTableBenchmark {
+
+    @Param({"3", "4096", "65536", "4194304"})
+    public int chunkSize;
+
+    private Fixtures fixtures;
+    private SubstitutionTable table;
+    private byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixtures = new Fixtures();
+        table = new SubstitutionTable();
+        SubstitutionTable.createSubstitutionTable(fixtures.writeText("table.txt", Fixtures.TABLE),
+                Logger.getLogger("bench"), table);
+        chunk = Fixtures.randomBytes(chunkSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixtures.delete();
+    }
+
+    @Benchmark
+    public RC substitute() {
+        return table.Substitute(chunk, 0, chunk.length);
+    }
+}
@@ -0,0 +1,168 @@
+package ru.spbstu.akirillova.utils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+public class BufferPool<T> {
+
+    public static final BufferPool<byte[]> BYTES = new BufferPool<>(byte[]::new, a -> a.length, a -> {});
+    public static final BufferPool<short[]> SHORTS = new BufferPool<>(short[]::new, a -> a.length, a -> {});
+    public static final BufferPool<char[]> CHARS = new BufferPool<>(char[]::new, a -> a.length, a -> {});
+    public static final BufferPool<ByteBuffer> DIRECT =
+            new BufferPool<>(ByteBuffer::allocateDirect, ByteBuffer::capacity, BufferPool::FreeDirect);
+
+    private static final int MAX_BUFFERS_PER_CLASS = 64;
+    private static final long MAX_POOLED_ELEMENTS = 64L * 1024 * 1024;
+    private static final long IDLE_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(30);
+    private static final int SWEEP_PERIOD = 1024;
+
+    private final IntFunction<T> allocator;
+    private final ToIntFunction<T> sizeOf;
+    private final Consumer<T> disposer;
+
+    private final Map<Integer, SizeClass<T>> classes = new ConcurrentHashMap<>();
+
+    private final AtomicLong pooledElements = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicInteger operations = new AtomicInteger();
+
+    private static class SizeClass<T> {
+        final ConcurrentLinkedDeque<T> buffers = new ConcurrentLinkedDeque<>();
+        final AtomicInteger count = new AtomicInteger();
+        volatile long lastAccess = System.nanoTime();
+    }
+
+    private static final Object unsafe;
+    private static final Method invokeCleaner;
+
+    static {
+        Object theUnsafe = null;
+        Method cleaner = null;
+        try {
+            Class<?> clazz = Class.forName("sun.misc.Unsafe");
+            Field field = clazz.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            theUnsafe = field.get(null);
+            cleaner = clazz.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // direct buffers are then left to the garbage collector
+        }
+        unsafe = theUnsafe;
+        invokeCleaner = cleaner;
+    }
+
+    private BufferPool(IntFunction<T> allocator, ToIntFunction<T> sizeOf, Consumer<T> disposer) {
+        this.allocator = allocator;
+        this.sizeOf = sizeOf;
+        this.disposer = disposer;
+    }
+
+    public T Borrow(int size) {
+        SizeClass<T> sizeClass = classes.get(size);
+        if (sizeClass != null) {
+            sizeClass.lastAccess = System.nanoTime();
+            T buffer = sizeClass.buffers.pollFirst();
+            if (buffer != null) {
+                sizeClass.count.decrementAndGet();
+                pooledElements.addAndGet(-size);
+                hits.incrementAndGet();
+                return buffer;
+            }
+        }
+        misses.incrementAndGet();
+        maybeSweep();
+        return allocator.apply(size);
+    }
+
+    public void Release(T buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int size = sizeOf.applyAsInt(buffer);
+        if (pooledElements.get() + size > MAX_POOLED_ELEMENTS) {
+            evictions.incrementAndGet();
+            disposer.accept(buffer);
+            return;
+        }
+
+        SizeClass<T> sizeClass = classes.computeIfAbsent(size, s -> new SizeClass<>());
+        sizeClass.lastAccess = System.nanoTime();
+        if (sizeClass.count.incrementAndGet() > MAX_BUFFERS_PER_CLASS) {
+            sizeClass.count.decrementAndGet();
+            evictions.incrementAndGet();
+            disposer.accept(buffer);
+            return;
+        }
+        pooledElements.addAndGet(size);
+        sizeClass.buffers.offerFirst(buffer);
+        maybeSweep();
+    }
+
+    public long Hits() {
+        return hits.get();
+    }
+
+    public long Misses() {
+        return misses.get();
+    }
+
+    public long Evictions() {
+        return evictions.get();
+    }
+
+    public void Purge() {
+        for (Map.Entry<Integer, SizeClass<T>> entry : classes.entrySet()) {
+            Drain(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void Drain(int size, SizeClass<T> sizeClass) {
+        T buffer;
+        while ((buffer = sizeClass.buffers.pollLast()) != null) {
+            sizeClass.count.decrementAndGet();
+            pooledElements.addAndGet(-size);
+            evictions.incrementAndGet();
+            disposer.accept(buffer);
+        }
+    }
+
+    private static void FreeDirect(ByteBuffer buffer) {
+        if (invokeCleaner == null || !buffer.isDirect()) {
+            return;
+        }
+        try {
+            invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // not an allocation root, the collector frees it
+        }
+    }
+
+    private void maybeSweep() {
+        if (operations.incrementAndGet() % SWEEP_PERIOD != 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Integer, SizeClass<T>>> it = classes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, SizeClass<T>> entry = it.next();
+            SizeClass<T> sizeClass = entry.getValue();
+            if (now - sizeClass.lastAccess < IDLE_TIMEOUT_NS) {
+                continue;
+            }
+            Drain(entry.getKey(), sizeClass);
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package ru.spbstu.akirillova.utils;
+
+public interface IBufferProducer {
+    IBufferMediator getBufferMediator();
+}
@@ -0,0 +1,9 @@
+package ru.spbstu.akirillova.utils;
+
+public interface IStatefulStep {
+    /**
+     * True when the output for a chunk depends on earlier chunks, so the step
+     * must see the whole stream in order and cannot be split across replicas.
+     */
+    boolean isStateful();
+}
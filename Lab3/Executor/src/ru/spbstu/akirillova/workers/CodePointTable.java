@@ -0,0 +1,329 @@
+package ru.spbstu.akirillova.workers;
+
+import ru.spbstu.akirillova.utils.Data;
+import ru.spbstu.akirillova.utils.FileParser;
+import ru.spbstu.akirillova.utils.PipelineBaseGrammar;
+import ru.spbstu.pipeline.RC;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+public class CodePointTable {
+
+    private static final int ASCII_SIZE = 128;
+    private static final int MAX_CODE_POINT = 0x10FFFF;
+    private static final int SCRATCH_SIZE = 64 * 1024;
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    // Shorter ASCII runs are copied through the scratch buffer instead of being pushed on their own
+    private static final int MIN_IN_PLACE_RUN = 64;
+
+    private static final Map<String, SubstitutionTable.CacheEntry<CodePointTable>> compiledTables =
+            new ConcurrentHashMap<>();
+
+    // mapped code point for every ASCII byte, the rest lives in the map
+    private final int[] ascii = new int[ASCII_SIZE];
+    // the same mapping as single bytes, negative where the result is not ASCII
+    private final byte[] asciiBytes = new byte[ASCII_SIZE];
+    private final IntIntMap map;
+    // every ASCII byte maps to an ASCII byte, so ASCII runs are a plain table copy
+    private boolean isAsciiClosed = true;
+
+    private CodePointTable(int expectedSize) {
+        for (int i = 0; i < ASCII_SIZE; ++i) {
+            ascii[i] = i;
+            asciiBytes[i] = (byte) i;
+        }
+        map = new IntIntMap(expectedSize);
+    }
+
+    public int Substitute(int codePoint) {
+        return codePoint < ASCII_SIZE ? ascii[codePoint] : map.Get(codePoint, codePoint);
+    }
+
+    Transcoder NewTranscoder() {
+        return new Transcoder();
+    }
+
+    public static CodePointTable createCodePointTable(String filename, Logger logger) {
+        SubstitutionTable.CacheEntry<CodePointTable> entry = compiledTables.get(SubstitutionTable.CacheKey(filename));
+        if (entry != null && entry.version.equals(SubstitutionTable.Version(filename))) {
+            return entry.table;
+        }
+        return reloadCodePointTable(filename, logger);
+    }
+
+    public static CodePointTable reloadCodePointTable(String filename, Logger logger) {
+        String cacheKey = SubstitutionTable.CacheKey(filename);
+        String version = SubstitutionTable.Version(filename);
+
+        PipelineBaseGrammar tableGrammar = new PipelineBaseGrammar(new String[] {}) {
+            private final String delimiter = "->";
+
+            @Override
+            public String delimiter() {
+                return delimiter;
+            }
+
+            @Override
+            public boolean Contains(String token) {
+                return true;
+            }
+        } ;
+
+        HashMap<String, String> rules = new HashMap<String, String>();
+        RC res = FileParser.ReadMap(filename, tableGrammar, logger, rules);
+        if (res != RC.CODE_SUCCESS) {
+            logger.severe("Cant read table");
+            return null;
+        }
+
+        CodePointTable table = new CodePointTable(rules.size());
+        for (Map.Entry<String, String> entry : rules.entrySet()) {
+            int key = parseCodePoint(entry.getKey());
+            int value = parseCodePoint(entry.getValue());
+            if (key < 0 || value < 0) {
+                logger.severe("Invalid code point rule " + entry.getKey() + " -> " + entry.getValue());
+                return null;
+            }
+            if (key < ASCII_SIZE) {
+                table.ascii[key] = value;
+                table.asciiBytes[key] = (byte) (value < ASCII_SIZE ? value : -1);
+                table.isAsciiClosed &= value < ASCII_SIZE;
+            }
+            else {
+                table.map.Put(key, value);
+            }
+        }
+
+        compiledTables.put(cacheKey, new SubstitutionTable.CacheEntry<>(version, table));
+        return table;
+    }
+
+    // "U+00E9" or "0xE9", surrogates are not code points
+    private static int parseCodePoint(String line) {
+        if (line == null || line.length() < 3 || !(line.startsWith("U+") || line.startsWith("0x"))) {
+            return -1;
+        }
+        int res;
+        try {
+            res = Integer.parseInt(line.substring(2), 16);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+        if (res < 0 || res > MAX_CODE_POINT || res >= 0xD800 && res <= 0xDFFF) {
+            return -1;
+        }
+        return res;
+    }
+
+    // Length of the ASCII prefix of src[i, limit), 8 bytes at a time
+    private static int AsciiRun(byte[] src, int i, int limit) {
+        int start = i;
+        while (i + Long.BYTES <= limit && ((long) LONGS.get(src, i) & HIGH_BITS) == 0) {
+            i += Long.BYTES;
+        }
+        while (i < limit && src[i] >= 0) {
+            ++i;
+        }
+        return i - start;
+    }
+
+    private static int Encode(int cp, byte[] dst, int o) {
+        if (cp < 0x80) {
+            dst[o++] = (byte) cp;
+        }
+        else if (cp < 0x800) {
+            dst[o++] = (byte) (0xC0 | cp >> 6);
+            dst[o++] = (byte) (0x80 | cp & 0x3F);
+        }
+        else if (cp < 0x10000) {
+            dst[o++] = (byte) (0xE0 | cp >> 12);
+            dst[o++] = (byte) (0x80 | cp >> 6 & 0x3F);
+            dst[o++] = (byte) (0x80 | cp & 0x3F);
+        }
+        else {
+            dst[o++] = (byte) (0xF0 | cp >> 18);
+            dst[o++] = (byte) (0x80 | cp >> 12 & 0x3F);
+            dst[o++] = (byte) (0x80 | cp >> 6 & 0x3F);
+            dst[o++] = (byte) (0x80 | cp & 0x3F);
+        }
+        return o;
+    }
+
+    // Decodes UTF-8, substitutes code points and encodes them back.
+    // Malformed bytes are passed through unchanged, a sequence cut by the chunk end is carried over.
+    class Transcoder implements IStreamSubstitutor {
+        private final byte[] scratch = new byte[SCRATCH_SIZE];
+        private final byte[] carry = new byte[3];
+        // Read-only and direct chunks are staged here a slice at a time, behind the carried bytes
+        private final byte[] input = new byte[carry.length + SCRATCH_SIZE];
+        private int carrySize;
+
+        @Override
+        public void Process(ByteBuffer in, Data out) {
+            if (carrySize == 0 && in.hasArray()) {
+                int from = in.arrayOffset() + in.position();
+                int end = from + in.remaining();
+                in.position(in.limit());
+                Carry(in.array(), Transcode(in.array(), from, end, out, false, false), end);
+                return;
+            }
+
+            while (in.hasRemaining()) {
+                int length = Math.min(in.remaining(), input.length - carrySize);
+                System.arraycopy(carry, 0, input, 0, carrySize);
+                in.get(input, carrySize, length);
+                int end = carrySize + length;
+                Carry(input, Transcode(input, 0, end, out, false, true), end);
+            }
+        }
+
+        private void Carry(byte[] src, int i, int end) {
+            carrySize = end - i;
+            System.arraycopy(src, i, carry, 0, carrySize);
+        }
+
+        @Override
+        public void Finish(Data out) {
+            Transcode(carry, 0, carrySize, out, true, false);
+            carrySize = 0;
+        }
+
+        @Override
+        public ByteBuffer Detach() {
+            ByteBuffer tail = ByteBuffer.wrap(Arrays.copyOf(carry, carrySize));
+            carrySize = 0;
+            return tail;
+        }
+
+        // An owned src is the staging array, its ASCII runs are substituted in place and pushed as they are
+        private int Transcode(byte[] src, int i, int end, Data out, boolean isLast, boolean isOwned) {
+            byte[] dst = scratch;
+            byte[] t = asciiBytes;
+            int o = 0;
+
+            while (i < end) {
+                if (o > dst.length - 4) {
+                    out.PushBack(dst, o);
+                    o = 0;
+                }
+
+                // ASCII run
+                int limit = Math.min(end, i + dst.length - o);
+                if (isAsciiClosed) {
+                    int run = AsciiRun(src, i, isOwned ? end : limit);
+                    if (isOwned && run >= MIN_IN_PLACE_RUN) {
+                        if (o > 0) {
+                            out.PushBack(dst, o);
+                            o = 0;
+                        }
+                        for (int k = i; k < i + run; ++k) {
+                            src[k] = t[src[k]];
+                        }
+                        out.PushBack(src, i, run);
+                        i += run;
+                        limit = Math.min(end, i + dst.length);
+                    }
+                    else {
+                        run = Math.min(run, limit - i);
+                        for (int k = 0; k < run; ++k) {
+                            dst[o + k] = t[src[i + k]];
+                        }
+                        o += run;
+                        i += run;
+                    }
+                }
+                else {
+                    while (i < limit) {
+                        int b = src[i];
+                        if (b < 0 || t[b] < 0) {
+                            break;
+                        }
+                        dst[o++] = t[b];
+                        ++i;
+                    }
+                }
+                if (i == end) {
+                    break;
+                }
+                if (i == limit) {
+                    continue;
+                }
+
+                int b = src[i];
+                if (b >= 0) {
+                    o = Encode(ascii[b], dst, o);
+                    ++i;
+                    continue;
+                }
+
+                int need;
+                int cp;
+                int min;
+                if ((b & 0xE0) == 0xC0) {
+                    need = 2;
+                    cp = b & 0x1F;
+                    min = 0x80;
+                }
+                else if ((b & 0xF0) == 0xE0) {
+                    need = 3;
+                    cp = b & 0x0F;
+                    min = 0x800;
+                }
+                else if ((b & 0xF8) == 0xF0) {
+                    need = 4;
+                    cp = b & 0x07;
+                    min = 0x10000;
+                }
+                else {
+                    dst[o++] = (byte) b;
+                    ++i;
+                    continue;
+                }
+
+                if (end - i < need && !isLast) {
+                    break;
+                }
+
+                boolean isValid = end - i >= need;
+                for (int k = 1; isValid && k < need; ++k) {
+                    int c = src[i + k];
+                    if ((c & 0xC0) != 0x80) {
+                        isValid = false;
+                        break;
+                    }
+                    cp = cp << 6 | c & 0x3F;
+                }
+                if (!isValid || cp < min || cp > MAX_CODE_POINT || cp >= 0xD800 && cp <= 0xDFFF) {
+                    dst[o++] = (byte) b;
+                    ++i;
+                    continue;
+                }
+
+                int mapped = map.Get(cp, cp);
+                if (mapped == cp) {
+                    System.arraycopy(src, i, dst, o, need);
+                    o += need;
+                }
+                else {
+                    o = Encode(mapped, dst, o);
+                }
+                i += need;
+            }
+
+            if (o > 0) {
+                out.PushBack(dst, o);
+            }
+            return i;
+        }
+    }
+}
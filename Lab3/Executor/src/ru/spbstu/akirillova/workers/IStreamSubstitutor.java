@@ -0,0 +1,24 @@
+package ru.spbstu.akirillova.workers;
+
+import ru.spbstu.akirillova.utils.Data;
+
+import java.nio.ByteBuffer;
+
+interface IStreamSubstitutor {
+    /**
+     * Consumes the whole input and appends everything that is already decided to out.
+     * A short tail that depends on the next chunk may be held back.
+     */
+    void Process(ByteBuffer in, Data out);
+
+    /**
+     * Appends the held back tail at the end of the stream.
+     */
+    void Finish(Data out);
+
+    /**
+     * Returns the held back input bytes unprocessed and forgets them, so another
+     * substitutor can continue the stream.
+     */
+    ByteBuffer Detach();
+}
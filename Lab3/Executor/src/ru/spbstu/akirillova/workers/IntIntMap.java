@@ -0,0 +1,80 @@
+package ru.spbstu.akirillova.workers;
+
+import java.util.Arrays;
+
+// Open addressing with linear probing, keys must be non-negative.
+class IntIntMap {
+
+    private static final int EMPTY = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    IntIntMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * expectedSize) {
+            capacity <<= 1;
+        }
+        Allocate(capacity);
+    }
+
+    int Size() {
+        return size;
+    }
+
+    int Get(int key, int missing) {
+        int i = Mix(key) & mask;
+        while (true) {
+            int k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == EMPTY) {
+                return missing;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    void Put(int key, int value) {
+        if (2 * (size + 1) > keys.length) {
+            Rehash(2 * keys.length);
+        }
+        int i = Mix(key) & mask;
+        while (keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == EMPTY) {
+            keys[i] = key;
+            ++size;
+        }
+        values[i] = value;
+    }
+
+    private void Allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private void Rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        Allocate(capacity);
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != EMPTY) {
+                Put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int Mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,315 @@
+package ru.spbstu.akirillova.workers;
+
+import ru.spbstu.akirillova.utils.Data;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+class PatternAutomaton {
+
+    private static final int ALPHABET = 256;
+    private static final int ROOT = 0;
+
+    // transitions[state * 256 + byte], failure links already folded in
+    private final int[] transitions;
+    private final int[] depths;
+    // longest pattern that is a suffix of the state's string, -1 if none
+    private final int[] matches;
+
+    private final int[] keyLengths;
+    private final byte[][] values;
+    private final int maxKeyLength;
+
+    private PatternAutomaton(int[] transitions, int[] depths, int[] matches, int[] keyLengths, byte[][] values) {
+        this.transitions = transitions;
+        this.depths = depths;
+        this.matches = matches;
+        this.keyLengths = keyLengths;
+        this.values = values;
+
+        int maxLength = 0;
+        for (int length : keyLengths) {
+            maxLength = Math.max(maxLength, length);
+        }
+        maxKeyLength = maxLength;
+    }
+
+    static PatternAutomaton Build(byte[][] keys, byte[][] values) {
+        int maxStates = 1;
+        for (byte[] key : keys) {
+            maxStates += key.length;
+        }
+
+        int[] next = new int[maxStates * ALPHABET];
+        Arrays.fill(next, -1);
+        int[] depths = new int[maxStates];
+        int[] matches = new int[maxStates];
+        Arrays.fill(matches, -1);
+
+        int states = 1;
+        for (int p = 0; p < keys.length; ++p) {
+            int state = ROOT;
+            for (byte b : keys[p]) {
+                int index = state * ALPHABET + (b & 0xFF);
+                if (next[index] < 0) {
+                    depths[states] = depths[state] + 1;
+                    next[index] = states++;
+                }
+                state = next[index];
+            }
+            matches[state] = p;
+        }
+
+        int[] fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ALPHABET; ++c) {
+            int child = next[c];
+            if (child < 0) {
+                next[c] = ROOT;
+            }
+            else {
+                fail[child] = ROOT;
+                queue.add(child);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            if (matches[state] < 0) {
+                matches[state] = matches[fail[state]];
+            }
+            for (int c = 0; c < ALPHABET; ++c) {
+                int index = state * ALPHABET + c;
+                int child = next[index];
+                int fallback = next[fail[state] * ALPHABET + c];
+                if (child < 0) {
+                    next[index] = fallback;
+                }
+                else {
+                    fail[child] = fallback;
+                    queue.add(child);
+                }
+            }
+        }
+
+        int[] keyLengths = new int[keys.length];
+        for (int p = 0; p < keys.length; ++p) {
+            keyLengths[p] = keys[p].length;
+        }
+
+        return new PatternAutomaton(Arrays.copyOf(next, states * ALPHABET), Arrays.copyOf(depths, states),
+                Arrays.copyOf(matches, states), keyLengths, values);
+    }
+
+    int ImageSize() {
+        int size = 2 * Integer.BYTES + (transitions.length + depths.length + matches.length) * Integer.BYTES
+                + 2 * keyLengths.length * Integer.BYTES;
+        for (byte[] value : values) {
+            size += value.length;
+        }
+        return size;
+    }
+
+    void WriteImage(ByteBuffer image) {
+        image.putInt(depths.length);
+        image.putInt(keyLengths.length);
+        image.asIntBuffer().put(transitions);
+        image.position(image.position() + transitions.length * Integer.BYTES);
+        for (int depth : depths) {
+            image.putInt(depth);
+        }
+        for (int match : matches) {
+            image.putInt(match);
+        }
+        for (int length : keyLengths) {
+            image.putInt(length);
+        }
+        for (byte[] value : values) {
+            image.putInt(value.length);
+        }
+        for (byte[] value : values) {
+            image.put(value);
+        }
+    }
+
+    static PatternAutomaton ReadImage(ByteBuffer image) {
+        int states = image.getInt();
+        int patterns = image.getInt();
+
+        // the header checksum covers the rules only, so the sizes are checked before anything is allocated
+        long tablesSize = ((long) states * ALPHABET + 2L * states + 2L * patterns) * Integer.BYTES;
+        if (states <= 0 || patterns < 0 || tablesSize > image.remaining()) {
+            throw new IllegalArgumentException("Image sizes out of range");
+        }
+
+        int[] transitions = new int[states * ALPHABET];
+        image.asIntBuffer().get(transitions);
+        image.position(image.position() + transitions.length * Integer.BYTES);
+
+        int[] depths = new int[states];
+        int[] matches = new int[states];
+        int[] keyLengths = new int[patterns];
+        byte[][] values = new byte[patterns][];
+        for (int i = 0; i < states; ++i) {
+            depths[i] = image.getInt();
+        }
+        for (int i = 0; i < states; ++i) {
+            matches[i] = image.getInt();
+        }
+        for (int i = 0; i < patterns; ++i) {
+            keyLengths[i] = image.getInt();
+        }
+        int[] valueLengths = new int[patterns];
+        long valuesSize = 0;
+        for (int i = 0; i < patterns; ++i) {
+            valueLengths[i] = image.getInt();
+            if (valueLengths[i] < 0) {
+                throw new IllegalArgumentException("Negative value length");
+            }
+            valuesSize += valueLengths[i];
+        }
+        if (valuesSize > image.remaining()) {
+            throw new IllegalArgumentException("Image sizes out of range");
+        }
+        for (int i = 0; i < patterns; ++i) {
+            values[i] = new byte[valueLengths[i]];
+        }
+        for (byte[] value : values) {
+            image.get(value);
+        }
+
+        for (int next : transitions) {
+            if (next < 0 || next >= states) {
+                throw new IllegalArgumentException("Transition out of range");
+            }
+        }
+        for (int i = 0; i < states; ++i) {
+            if (matches[i] < -1 || matches[i] >= patterns || depths[i] < 0) {
+                throw new IllegalArgumentException("Inconsistent state " + i);
+            }
+        }
+        for (int length : keyLengths) {
+            if (length <= 0) {
+                throw new IllegalArgumentException("Empty key");
+            }
+        }
+        return new PatternAutomaton(transitions, depths, matches, keyLengths, values);
+    }
+
+    int States() {
+        return depths.length;
+    }
+
+    Matcher NewMatcher() {
+        return new Matcher();
+    }
+
+    // Leftmost-longest, non-overlapping replacement over a stream of chunks.
+    // Only the bytes that may still belong to a match are carried between chunks.
+    class Matcher implements IStreamSubstitutor {
+        private byte[] pending = new byte[Math.max(16, 2 * maxKeyLength)];
+        private int size;
+        private int base;
+        private int scanned;
+        private int state = ROOT;
+
+        private int candidate = -1;
+        private int candidatePattern;
+
+        @Override
+        public void Process(ByteBuffer in, Data out) {
+            int length = in.remaining();
+            Reserve(length);
+            in.get(pending, size, length);
+            size += length;
+
+            Scan(out, false);
+        }
+
+        @Override
+        public void Finish(Data out) {
+            Scan(out, true);
+            state = ROOT;
+        }
+
+        @Override
+        public ByteBuffer Detach() {
+            ByteBuffer tail = ByteBuffer.wrap(Arrays.copyOfRange(pending, base, size));
+            size = 0;
+            base = 0;
+            scanned = 0;
+            state = ROOT;
+            candidate = -1;
+            return tail;
+        }
+
+        private void Scan(Data out, boolean isLast) {
+            int[] t = transitions;
+            while (true) {
+                while (scanned < size) {
+                    state = t[(state << 8) | (pending[scanned++] & 0xFF)];
+
+                    int p = matches[state];
+                    if (p >= 0) {
+                        int start = scanned - keyLengths[p];
+                        if (candidate < 0 || start < candidate
+                                || start == candidate && keyLengths[p] > keyLengths[candidatePattern]) {
+                            candidate = start;
+                            candidatePattern = p;
+                        }
+                    }
+
+                    if (candidate >= 0 && candidate < scanned - depths[state]) {
+                        Commit(out);
+                    }
+                }
+                if (!isLast || candidate < 0) {
+                    break;
+                }
+                Commit(out);
+            }
+
+            int safe = isLast ? size : scanned - depths[state];
+            Emit(out, base, safe - base);
+            base = safe;
+            Compact();
+        }
+
+        private void Commit(Data out) {
+            Emit(out, base, candidate - base);
+            byte[] value = values[candidatePattern];
+            out.PushBack(value, value.length);
+
+            base = candidate + keyLengths[candidatePattern];
+            scanned = base;
+            state = ROOT;
+            candidate = -1;
+        }
+
+        private void Emit(Data out, int from, int length) {
+            if (length > 0) {
+                out.PushBack(ByteBuffer.wrap(pending, from, length), length);
+            }
+        }
+
+        private void Compact() {
+            if (base == 0) {
+                return;
+            }
+            System.arraycopy(pending, base, pending, 0, size - base);
+            size -= base;
+            scanned -= base;
+            if (candidate >= 0) {
+                candidate -= base;
+            }
+            base = 0;
+        }
+
+        private void Reserve(int length) {
+            if (pending.length - size < length) {
+                pending = Arrays.copyOf(pending, Math.max(2 * pending.length, size + length));
+            }
+        }
+    }
+}
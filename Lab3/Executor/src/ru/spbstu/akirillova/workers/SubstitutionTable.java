@@ -4,29 +4,81 @@ import ru.spbstu.pipeline.RC;
 import ru.spbstu.akirillova.utils.FileParser;
 import ru.spbstu.akirillova.utils.PipelineBaseGrammar;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 public class SubstitutionTable {
 
-    private HashMap<Byte, Byte> table;
+    static final int TABLE_SIZE = 256;
+
+    // one compiled table per file, replaced when the file changes
+    private static final Map<String, CacheEntry<Compiled>> compiledTables = new ConcurrentHashMap<>();
+
+    static class CacheEntry<T> {
+        final String version;
+        final T table;
+
+        CacheEntry(String version, T table) {
+            this.version = version;
+            this.table = table;
+        }
+    }
+
+    static class Compiled {
+        final byte[] table;
+        final PatternAutomaton automaton;
+
+        Compiled(byte[] table, PatternAutomaton automaton) {
+            this.table = table;
+            this.automaton = automaton;
+        }
+    }
+
+    private byte[] table;
+    private boolean isIdentity;
+    private PatternAutomaton automaton;
 
     private Logger logger;
 
-    private void SetData(HashMap<Byte, Byte> table, Logger logger) {
-        this.table = table;
+    private void SetData(Compiled compiled, Logger logger) {
+        this.table = compiled.table;
+        this.automaton = compiled.automaton;
+        this.isIdentity = automaton == null && IsIdentity(table);
         this.logger = logger;
     }
 
-    public byte Substitute(byte x) {
-        Byte y = table.get(x);
-        if (y == null) {
-            return x;
-        }
-        else {
-            return y;
+    public byte[] GetMapping() {
+        return IsMultiByte() ? null : table.clone();
+    }
+
+    public RC SetMapping(byte[] mapping, Logger logger) {
+        if (mapping == null || mapping.length != TABLE_SIZE) {
+            logger.warning("Invalid byte mapping");
+            return RC.CODE_INVALID_ARGUMENT;
         }
+        SetData(new Compiled(mapping.clone(), null), logger);
+        return RC.CODE_SUCCESS;
+    }
+
+    public boolean IsIdentity() {
+        return isIdentity;
+    }
+
+    public boolean IsMultiByte() {
+        return automaton != null;
+    }
+
+    PatternAutomaton.Matcher NewMatcher() {
+        return automaton.NewMatcher();
+    }
+
+    public byte Substitute(byte x) {
+        return IsMultiByte() ? x : table[x & 0xFF];
     }
 
     public RC Substitute(byte[] data) {
@@ -34,15 +86,111 @@ public class SubstitutionTable {
             logger.warning("Substitution data is null");
             return RC.CODE_INVALID_ARGUMENT;
         }
+        return Substitute(data, 0, data.length);
+    }
+
+    public RC Substitute(byte[] data, int offset, int length) {
+        if (data == null || offset < 0 || length < 0 || offset > data.length - length) {
+            logger.warning("Invalid substitution range");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        if (IsMultiByte()) {
+            logger.warning("Multi-byte table cannot substitute in place");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        if (isIdentity) {
+            return RC.CODE_SUCCESS;
+        }
 
-        for (int i = 0; i < data.length; ++i) {
-            data[i] = Substitute(data[i]);
+        // Plain indexed loop on purpose: the modules target Java 14, which has no
+        // jdk.incubator.vector, and even on JDK 17 it outruns both a SWAR and a
+        // Vector API shuffle kernel for arbitrary 256-entry tables.
+        byte[] t = table;
+        int end = offset + length;
+        for (int i = offset; i < end; ++i) {
+            data[i] = t[data[i] & 0xFF];
+        }
+
+        return RC.CODE_SUCCESS;
+    }
+
+    public RC Substitute(ByteBuffer data) {
+        if (data == null || data.isReadOnly()) {
+            logger.warning("Substitution buffer is not writable");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        if (IsMultiByte()) {
+            logger.warning("Multi-byte table cannot substitute in place");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        if (data.hasArray()) {
+            return Substitute(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+
+        if (isIdentity) {
+            return RC.CODE_SUCCESS;
+        }
+
+        for (int i = data.position(); i < data.limit(); ++i) {
+            data.put(i, table[data.get(i) & 0xFF]);
         }
 
         return RC.CODE_SUCCESS;
     }
 
     public static RC createSubstitutionTable(String filename, Logger logger, SubstitutionTable table) {
+        String cacheKey = CacheKey(filename);
+
+        CacheEntry<Compiled> entry = compiledTables.get(cacheKey);
+        if (entry == null || !entry.version.equals(Version(filename))) {
+            RC res = compileSubstitutionTable(filename, logger, cacheKey);
+            if (res != RC.CODE_SUCCESS) {
+                return res;
+            }
+            entry = compiledTables.get(cacheKey);
+        }
+
+        table.SetData(entry.table, logger);
+
+        return RC.CODE_SUCCESS;
+    }
+
+    public static RC reloadSubstitutionTable(String filename, Logger logger, SubstitutionTable table) {
+        String cacheKey = CacheKey(filename);
+
+        RC res = compileSubstitutionTable(filename, logger, cacheKey);
+        if (res != RC.CODE_SUCCESS) {
+            return res;
+        }
+
+        table.SetData(compiledTables.get(cacheKey).table, logger);
+
+        return RC.CODE_SUCCESS;
+    }
+
+    static String CacheKey(String filename) {
+        return new File(filename).getAbsolutePath();
+    }
+
+    static String Version(String filename) {
+        File file = new File(filename);
+        return file.lastModified() + ":" + file.length();
+    }
+
+    private static RC compileSubstitutionTable(String filename, Logger logger, String cacheKey) {
+        // taken before reading, so a change made meanwhile is picked up by the next lookup
+        String version = Version(filename);
+
+        Compiled image = TableImage.Load(filename, logger);
+        if (image != null) {
+            compiledTables.put(cacheKey, new CacheEntry<>(version, image));
+            return RC.CODE_SUCCESS;
+        }
+
         PipelineBaseGrammar tableGrammar = new PipelineBaseGrammar(new String[] {}) {
             private final String delimiter = "->";
 
@@ -64,42 +212,78 @@ public class SubstitutionTable {
             return res;
         }
 
-        HashMap<Byte, Byte> subsTable = Convert(map);
-        if (subsTable == null) {
+        Compiled compiled = Convert(map);
+        if (compiled == null) {
             logger.severe("Failed to convert table to byte");
-            table = null;
             return RC.CODE_CONFIG_SEMANTIC_ERROR;
         }
+        if (compiled.automaton != null) {
+            logger.info("Compiled " + map.size() + " multi-byte rules into " + compiled.automaton.States() + " states");
+        }
 
-        table.SetData(subsTable, logger);
+        compiledTables.put(cacheKey, new CacheEntry<>(version, compiled));
+        TableImage.Store(filename, compiled, logger);
 
         return RC.CODE_SUCCESS;
     }
 
-    private static HashMap<Byte, Byte> Convert(HashMap<String, String> table) {
-        HashMap<Byte, Byte> byteTable = new HashMap<>();
+    private static Compiled Convert(HashMap<String, String> table) {
+        byte[][] keys = new byte[table.size()][];
+        byte[][] values = new byte[table.size()][];
+        boolean isMultiByte = false;
 
+        int i = 0;
         for (Map.Entry<String, String> entry:table.entrySet()) {
-            Byte key = parseByte(entry.getKey());
-            Byte value = parseByte(entry.getValue());
-            if (key == null || value == null) {
+            keys[i] = parseBytes(entry.getKey());
+            values[i] = parseBytes(entry.getValue());
+            if (keys[i] == null || values[i] == null) {
                 return null;
             }
-            byteTable.put(key, value);
+            isMultiByte |= keys[i].length != 1 || values[i].length != 1;
+            ++i;
         }
-        return byteTable;
+
+        if (isMultiByte) {
+            return new Compiled(null, PatternAutomaton.Build(keys, values));
+        }
+
+        byte[] byteTable = new byte[TABLE_SIZE];
+        for (i = 0; i < TABLE_SIZE; ++i) {
+            byteTable[i] = (byte) i;
+        }
+        for (i = 0; i < keys.length; ++i) {
+            byteTable[keys[i][0] & 0xFF] = values[i][0];
+        }
+        return new Compiled(byteTable, null);
     }
 
-    private static Byte parseByte(String line) {
-        if (line == null || line.length() != 4 || !line.startsWith("0x")) {
-            return null;
+    private static boolean IsIdentity(byte[] table) {
+        for (int i = 0; i < TABLE_SIZE; ++i) {
+            if (table[i] != (byte) i) {
+                return false;
+            }
         }
-        byte res;
-        try {
-            res = (byte) Integer.parseInt(line.substring(2), 16);
-        } catch (NumberFormatException ex) {
+        return true;
+    }
+
+    // "0x63", "0x63 0x61 0x74" and "0x636174" all denote byte sequences
+    private static byte[] parseBytes(String line) {
+        if (line == null) {
             return null;
         }
-        return res;
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        for (String token : line.trim().split("\\s+")) {
+            if (token.length() < 4 || token.length() % 2 != 0 || !token.startsWith("0x")) {
+                return null;
+            }
+            for (int i = 2; i < token.length(); i += 2) {
+                try {
+                    res.write(Integer.parseInt(token.substring(i, i + 2), 16));
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+            }
+        }
+        return res.toByteArray();
     }
 }
\ No newline at end of file
@@ -1,11 +1,20 @@
 package ru.spbstu.akirillova.workers;
 
+import ru.spbstu.akirillova.utils.BufferPool;
 import ru.spbstu.akirillova.utils.Data;
+import ru.spbstu.akirillova.utils.IBufferMediator;
+import ru.spbstu.akirillova.utils.IBufferProducer;
+import ru.spbstu.akirillova.utils.IByteSubstitution;
+import ru.spbstu.akirillova.utils.IReusableStep;
+import ru.spbstu.akirillova.utils.IStatefulStep;
 import ru.spbstu.pipeline.*;
 import ru.spbstu.akirillova.config.SemanticsBase;
 import ru.spbstu.akirillova.config.Config;
 import ru.spbstu.akirillova.utils.PipelineBaseGrammar;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.logging.Logger;
 
 class SubstitutorGrammar extends PipelineBaseGrammar {
@@ -38,6 +47,27 @@ class SubstitutorSemantics extends SemanticsBase {
         if (fieldName.equals(Fields.TABLE_FILE.toString())) {
             return SemanticsBase.IsFile(fieldValue);
         }
+        else if (fieldName.equals(Fields.ENCODING.toString())) {
+            if (Encoding.fromString(fieldValue) != null) {
+                return true;
+            }
+            GetLogger().warning("Unknown encoding " + fieldValue);
+            return false;
+        }
+        else if (fieldName.equals(Fields.TABLE_RELOAD.toString())) {
+            if (ReloadMode.fromString(fieldValue) != null) {
+                return true;
+            }
+            GetLogger().warning("Unknown table reload mode " + fieldValue);
+            return false;
+        }
+        else if (fieldName.equals(Fields.STORAGE.toString())) {
+            if (Data.Storage.fromString(fieldValue) != null) {
+                return true;
+            }
+            GetLogger().warning("Unknown storage " + fieldValue);
+            return false;
+        }
         else {
             GetLogger().warning("Unknown field");
         }
@@ -45,7 +75,10 @@ class SubstitutorSemantics extends SemanticsBase {
     }
 
     public enum Fields {
-        TABLE_FILE("table_file");
+        TABLE_FILE("table_file"),
+        STORAGE("storage"),
+        ENCODING("encoding"),
+        TABLE_RELOAD("table_reload");
 
         private final String name;
 
@@ -57,12 +90,80 @@ class SubstitutorSemantics extends SemanticsBase {
             return this.name;
         }
     }
+
+    public enum ReloadMode {
+        OFF("off"),
+        WATCH("watch");
+
+        private final String name;
+
+        ReloadMode(String name) {
+            this.name = name;
+        }
+
+        public static ReloadMode fromString(String name) {
+            for (ReloadMode mode : values()) {
+                if (mode.name.equals(name)) {
+                    return mode;
+                }
+            }
+            return null;
+        }
+
+        public String toString() {
+            return this.name;
+        }
+    }
+
+    // UTF8 substitutes code points in a UTF-8 byte stream; its output is still bytes,
+    // so CHAR and SHORT consumers get them widened one by one as in BYTES mode
+    public enum Encoding {
+        BYTES("bytes"),
+        UTF8("utf8");
+
+        private final String name;
+
+        Encoding(String name) {
+            this.name = name;
+        }
+
+        public static Encoding fromString(String name) {
+            for (Encoding encoding : values()) {
+                if (encoding.name.equals(name)) {
+                    return encoding;
+                }
+            }
+            return null;
+        }
+
+        public String toString() {
+            return this.name;
+        }
+    }
 }
 
 
-public class Substitutor implements IExecutor {
+public class Substitutor implements IExecutor, IBufferProducer, IStatefulStep, IByteSubstitution, IReusableStep,
+        Closeable {
+
+    private static class Engine {
+        final SubstitutionTable table;
+        final IStreamSubstitutor matcher;
+
+        Engine(SubstitutionTable table, IStreamSubstitutor matcher) {
+            this.table = table;
+            this.matcher = matcher;
+        }
+    }
 
     SubstitutionTable table;
+    private IStreamSubstitutor matcher;
+
+    private TableWatcher<Engine> watcher;
+    // Counted per stream: version 0 is the table the stream starts with
+    private int tableVersion;
+    private long chunkIndex;
+    private SubstitutorSemantics.Encoding encoding = SubstitutorSemantics.Encoding.BYTES;
     IProducer producer;
     IConsumer consumer;
 
@@ -72,6 +173,7 @@ public class Substitutor implements IExecutor {
 
     private IMediator mediator;
     private TYPE mediatorType;
+    private IBufferMediator bufferMediator;
 
     private boolean isEnd;
 
@@ -111,6 +213,31 @@ public class Substitutor implements IExecutor {
         }
     }
 
+    class BufferMediator implements IBufferMediator {
+        private int lent;
+
+        @Override
+        public ByteBuffer getBuffer() {
+            if (outData.IsEmpty() && isEnd) {
+                return null;
+            }
+            ByteBuffer view = outData.View();
+            lent = view.remaining();
+            return view.asReadOnlyBuffer();
+        }
+
+        @Override
+        public void release() {
+            outData.Skip(lent);
+            lent = 0;
+        }
+    }
+
+    @Override
+    public IBufferMediator getBufferMediator() {
+        return new BufferMediator();
+    }
+
     @Override
     public IMediator getMediator(TYPE type) {
         switch (type) {
@@ -154,6 +281,14 @@ public class Substitutor implements IExecutor {
             logger.warning("Invalid producer");
             return RC.CODE_INVALID_ARGUMENT;
         }
+
+        if (newProducer instanceof IBufferProducer) {
+            bufferMediator = ((IBufferProducer) newProducer).getBufferMediator();
+            if (bufferMediator != null) {
+                return RC.CODE_SUCCESS;
+            }
+        }
+
         TYPE[] prodTypes = newProducer.getOutputTypes();
 
         for (TYPE p : prodTypes) {
@@ -182,14 +317,56 @@ public class Substitutor implements IExecutor {
         String tableFilename = cfg.GetParameter(SubstitutorSemantics.Fields.TABLE_FILE.toString());
         assert  tableFilename != null;
 
+        String storage = cfg.GetParameter(SubstitutorSemantics.Fields.STORAGE.toString());
+        if (storage != null) {
+            this.outData = new Data(Data.Storage.fromString(storage));
+        }
+
+        String encoding = cfg.GetParameter(SubstitutorSemantics.Fields.ENCODING.toString());
+        if (encoding != null) {
+            this.encoding = SubstitutorSemantics.Encoding.fromString(encoding);
+        }
+
+        Engine engine = compileEngine(tableFilename, false);
+        if (engine == null) {
+            return RC.CODE_CONFIG_SEMANTIC_ERROR;
+        }
+        this.table = engine.table;
+        this.matcher = engine.matcher;
+
+        String reloadMode = cfg.GetParameter(SubstitutorSemantics.Fields.TABLE_RELOAD.toString());
+        if (SubstitutorSemantics.ReloadMode.fromString(reloadMode) == SubstitutorSemantics.ReloadMode.WATCH) {
+            watcher = new TableWatcher<>(tableFilename, () -> compileEngine(tableFilename, true), logger);
+            try {
+                watcher.start();
+            } catch (IOException e) {
+                logger.severe("Cant watch table file");
+                watcher = null;
+                return RC.CODE_CONFIG_SEMANTIC_ERROR;
+            }
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    private Engine compileEngine(String tableFilename, boolean isReload) {
+        if (encoding == SubstitutorSemantics.Encoding.UTF8) {
+            CodePointTable cpTable = isReload ? CodePointTable.reloadCodePointTable(tableFilename, logger)
+                    : CodePointTable.createCodePointTable(tableFilename, logger);
+            if (cpTable == null) {
+                logger.severe("Cant create code point table");
+                return null;
+            }
+            return new Engine(null, cpTable.NewTranscoder());
+        }
+
         SubstitutionTable subsTable = new SubstitutionTable();
-        rc = SubstitutionTable.createSubstitutionTable(tableFilename, logger, subsTable);
+        RC rc = isReload ? SubstitutionTable.reloadSubstitutionTable(tableFilename, logger, subsTable)
+                : SubstitutionTable.createSubstitutionTable(tableFilename, logger, subsTable);
         if (rc != RC.CODE_SUCCESS) {
             logger.severe("Cant create substitution table");
-            return rc;
+            return null;
         }
-        this.table = subsTable;
-        return RC.CODE_SUCCESS;
+        return new Engine(subsTable, subsTable.IsMultiByte() ? subsTable.NewMatcher() : null);
     }
 
     private byte[] GetBytes(Object data) {
@@ -202,7 +379,7 @@ public class Substitutor implements IExecutor {
                 return (byte[]) data;
             case SHORT:
                 short[] shorts = (short[]) data;
-                byte[] bytes = new byte[shorts.length * 2];
+                byte[] bytes = BufferPool.BYTES.Borrow(shorts.length * 2);
                 for (int i = 0; i < shorts.length * 2; i++) {
                     bytes[i] = (byte) (shorts[i / 2] >> 8);
                     bytes[i + 1] = (byte) (shorts[i / 2] & 0xFF);
@@ -215,11 +392,22 @@ public class Substitutor implements IExecutor {
     }
 
 
+    private void releaseInput(Object obj, byte[] bytes) {
+        BufferPool.BYTES.Release(bytes);
+        if (mediatorType == TYPE.SHORT) {
+            BufferPool.SHORTS.Release((short[]) obj);
+        }
+    }
+
     @Override
     public RC execute() {
+        if (bufferMediator != null) {
+            return executeBuffered();
+        }
+
         Object obj = mediator.getData();
         if (obj == null) {
-            isEnd = true;
+            return finishInput();
         }
         else {
             byte[] data = GetBytes(obj);
@@ -228,13 +416,90 @@ public class Substitutor implements IExecutor {
                 return RC.CODE_INVALID_ARGUMENT;
             }
 
-            RC rc = table.Substitute(data);
+            RC rc = beginChunk();
+            if (rc == RC.CODE_SUCCESS) {
+                rc = substitute(ByteBuffer.wrap(data));
+            }
+            releaseInput(obj, data);
+            if (rc != RC.CODE_SUCCESS) {
+                return rc;
+            }
+        }
+        return drainOutput();
+    }
+
+    private RC executeBuffered() {
+        ByteBuffer in = bufferMediator.getBuffer();
+        if (in == null) {
+            return finishInput();
+        }
+
+        RC rc = beginChunk();
+        if (rc == RC.CODE_SUCCESS) {
+            rc = substitute(in);
+        }
+        bufferMediator.release();
+        if (rc != RC.CODE_SUCCESS) {
+            return rc;
+        }
+        return drainOutput();
+    }
+
+    private RC substitute(ByteBuffer in) {
+        if (matcher != null) {
+            matcher.Process(in, outData);
+            return RC.CODE_SUCCESS;
+        }
+
+        int offset = outData.Size();
+        int length = in.remaining();
+        outData.PushBack(in, length);
+
+        for (ByteBuffer segment : outData.Segments(offset, length)) {
+            RC rc = table.Substitute(segment);
             if (rc != RC.CODE_SUCCESS) {
                 logger.severe("Substitution error");
                 return rc;
             }
-            outData.PushBack(data);
         }
+        return RC.CODE_SUCCESS;
+    }
+
+    // The only place where a reloaded table is swapped in, so a chunk never mixes two tables.
+    private RC beginChunk() {
+        Engine next = (watcher == null) ? null : watcher.poll();
+        if (next != null) {
+            ByteBuffer tail = (matcher == null) ? null : matcher.Detach();
+            table = next.table;
+            matcher = next.matcher;
+
+            ++tableVersion;
+            logger.info("Substitution table version " + tableVersion + " is used from chunk " + chunkIndex);
+
+            if (tail != null) {
+                RC rc = substitute(tail);
+                if (rc != RC.CODE_SUCCESS) {
+                    return rc;
+                }
+            }
+        }
+        ++chunkIndex;
+        return RC.CODE_SUCCESS;
+    }
+
+    private RC finishInput() {
+        if (matcher != null) {
+            matcher.Finish(outData);
+            RC rc = drainOutput();
+            if (rc != RC.CODE_SUCCESS) {
+                return rc;
+            }
+        }
+        isEnd = true;
+        return consumer.execute();
+    }
+
+    private RC drainOutput() {
         while(!outData.IsEmpty()) {
             RC rc = consumer.execute();
             if (rc != RC.CODE_SUCCESS) {
@@ -245,4 +510,46 @@ public class Substitutor implements IExecutor {
 
         return RC.CODE_SUCCESS;
     }
-}
\ No newline at end of file
+
+    @Override
+    public boolean isStateful() {
+        return matcher != null || watcher != null;
+    }
+
+    @Override
+    public byte[] getByteMapping() {
+        if (matcher != null || watcher != null) {
+            return null;
+        }
+        return table.GetMapping();
+    }
+
+    @Override
+    public RC setByteMapping(byte[] mapping) {
+        if (matcher != null || watcher != null) {
+            logger.warning("Substitutor is not a pure byte substitution");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+        return table.SetMapping(mapping, logger);
+    }
+
+    @Override
+    public RC reset() {
+        if (matcher != null) {
+            matcher.Detach();
+        }
+        outData.Clear();
+        isEnd = false;
+        tableVersion = 0;
+        chunkIndex = 0;
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public void close() {
+        if (watcher != null) {
+            watcher.close();
+        }
+        outData.Free();
+    }
+}
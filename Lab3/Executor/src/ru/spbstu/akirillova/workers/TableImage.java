@@ -0,0 +1,155 @@
+package ru.spbstu.akirillova.workers;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+// Compiled form of a table file, stored next to it as <table>.compiled.
+// Layout (little endian): magic, format version, source length, source CRC32, CRC32 of kind and payload,
+// kind, payload.
+class TableImage {
+
+    private static final String SUFFIX = ".compiled";
+    private static final int MAGIC = 0x54425553;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 3 * Long.BYTES + Integer.BYTES;
+
+    private static final int KIND_BYTE_TABLE = 0;
+    private static final int KIND_AUTOMATON = 1;
+
+    static SubstitutionTable.Compiled Load(String filename, Logger logger) {
+        Path image = ImagePath(filename);
+        if (!Files.isRegularFile(image)) {
+            return null;
+        }
+
+        long[] source = Checksum(filename);
+        if (source == null) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (mapped.remaining() < HEADER_SIZE || mapped.getInt() != MAGIC || mapped.getInt() != FORMAT_VERSION
+                    || mapped.getLong() != source[0] || mapped.getLong() != source[1]) {
+                logger.info("Compiled table " + image + " is stale");
+                return null;
+            }
+            long payloadCrc = mapped.getLong();
+            if (Crc(mapped.duplicate()) != payloadCrc) {
+                logger.warning("Compiled table " + image + " is corrupt");
+                return null;
+            }
+
+            SubstitutionTable.Compiled compiled;
+            switch (mapped.getInt()) {
+                case KIND_BYTE_TABLE:
+                    byte[] table = new byte[SubstitutionTable.TABLE_SIZE];
+                    mapped.get(table);
+                    compiled = new SubstitutionTable.Compiled(table, null);
+                    break;
+                case KIND_AUTOMATON:
+                    compiled = new SubstitutionTable.Compiled(null, PatternAutomaton.ReadImage(mapped));
+                    break;
+                default:
+                    logger.info("Compiled table " + image + " is stale");
+                    return null;
+            }
+            if (mapped.hasRemaining()) {
+                logger.info("Compiled table " + image + " is stale");
+                return null;
+            }
+            return compiled;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            logger.warning("Cant read compiled table " + image);
+            return null;
+        }
+    }
+
+    static void Store(String filename, SubstitutionTable.Compiled compiled, Logger logger) {
+        Path image = ImagePath(filename);
+        long[] source = Checksum(filename);
+        if (source == null) {
+            return;
+        }
+
+        int payloadSize = (compiled.automaton == null) ? SubstitutionTable.TABLE_SIZE : compiled.automaton.ImageSize();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putLong(source[0]);
+        buffer.putLong(source[1]);
+        int payloadCrcPosition = buffer.position();
+        buffer.putLong(0);
+        if (compiled.automaton == null) {
+            buffer.putInt(KIND_BYTE_TABLE);
+            buffer.put(compiled.table);
+        }
+        else {
+            buffer.putInt(KIND_AUTOMATON);
+            compiled.automaton.WriteImage(buffer);
+        }
+        buffer.flip();
+        buffer.putLong(payloadCrcPosition, Crc(buffer.duplicate().position(payloadCrcPosition + Long.BYTES)));
+
+        // every writer gets its own temporary file, the last move wins
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(image.toAbsolutePath().getParent(), image.getFileName() + ".", ".tmp");
+            if (Files.getFileStore(tmp).supportsFileAttributeView(PosixFileAttributeView.class)) {
+                Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(Paths.get(filename)));
+            }
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(tmp, image, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warning("Cant write compiled table " + image);
+            try {
+                if (tmp != null) {
+                    Files.deleteIfExists(tmp);
+                }
+            } catch (IOException ex) {
+
+            }
+        }
+    }
+
+    private static long Crc(ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private static Path ImagePath(String filename) {
+        return Paths.get(filename + SUFFIX);
+    }
+
+    // {length, CRC32} of the source table
+    private static long[] Checksum(String filename) {
+        byte[] source;
+        try {
+            source = Files.readAllBytes(Paths.get(filename));
+        } catch (IOException e) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(source);
+        return new long[] {source.length, crc.getValue()};
+    }
+}
@@ -0,0 +1,105 @@
+package ru.spbstu.akirillova.workers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+// Recompiles a table in the background whenever its file changes.
+// The owner picks the latest result up with poll() at a point where swapping is safe.
+class TableWatcher<T> implements Closeable {
+
+    // editors often truncate and write in several steps, wait for the file to settle
+    private static final long SETTLE_MS = 50;
+
+    private final Path file;
+    private final Supplier<T> compiler;
+    private final Logger logger;
+
+    private final AtomicReference<T> pending = new AtomicReference<>();
+
+    private WatchService service;
+    private Thread thread;
+
+    TableWatcher(String filename, Supplier<T> compiler, Logger logger) {
+        this.file = Paths.get(filename).toAbsolutePath();
+        this.compiler = compiler;
+        this.logger = logger;
+    }
+
+    void start() throws IOException {
+        service = FileSystems.getDefault().newWatchService();
+        file.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        thread = new Thread(this::run, "substitutor-table-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    T poll() {
+        return pending.getAndSet(null);
+    }
+
+    @Override
+    public void close() {
+        if (service == null) {
+            return;
+        }
+        try {
+            service.close();
+        } catch (IOException e) {
+            logger.warning("Cant close table watch service");
+        }
+        thread.interrupt();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                if (!isTableChanged(service.take())) {
+                    continue;
+                }
+
+                WatchKey key;
+                do {
+                    TimeUnit.MILLISECONDS.sleep(SETTLE_MS);
+                    key = service.poll();
+                    if (key != null) {
+                        isTableChanged(key);
+                    }
+                } while (key != null);
+
+                T table = compiler.get();
+                if (table == null) {
+                    logger.warning("Cant reload " + file + ", keeping the current table");
+                    continue;
+                }
+                pending.set(table);
+                logger.info("Reloaded " + file);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed by the owner
+        }
+    }
+
+    private boolean isTableChanged(WatchKey key) {
+        boolean isChanged = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                isChanged = true;
+            }
+        }
+        key.reset();
+        return isChanged;
+    }
+}
@@ -0,0 +1,240 @@
+package ru.spbstu.akirillova;
+
+import ru.spbstu.akirillova.utils.BufferPool;
+import ru.spbstu.akirillova.utils.IBufferMediator;
+import ru.spbstu.akirillova.utils.IBufferProducer;
+import ru.spbstu.pipeline.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+// Feeds every chunk of one producer to several consumers, one after another.
+// When the producer lends buffers, all branches read the same chunk through read-only views and
+// the producer gets it back once the last branch has released its view. Otherwise consumers
+// release the arrays they get into the pools, so all but the last one get a copy.
+class FanOutStage implements IConsumer, IProducer, IBufferProducer {
+
+    private final List<IConsumer> consumers = new ArrayList<>();
+
+    private IProducer producer;
+
+    private IMediator upstreamMediator;
+    private TYPE upstreamType;
+    private Object current;
+
+    private IBufferMediator upstreamBufferMediator;
+    private final List<SharedView> views = new ArrayList<>();
+    private final AtomicInteger references = new AtomicInteger();
+    private ByteBuffer shared;
+
+    private final Logger logger;
+
+    class BranchMediator implements IMediator {
+        @Override
+        public Object getData() {
+            return current;
+        }
+    }
+
+    // One reference to the shared chunk, dropped by the branch when it is done with it
+    abstract class SharedView {
+        private boolean isHeld;
+
+        void acquire() {
+            isHeld = true;
+        }
+
+        void drop() {
+            if (isHeld) {
+                isHeld = false;
+                if (references.decrementAndGet() == 0) {
+                    upstreamBufferMediator.release();
+                }
+            }
+        }
+    }
+
+    class BranchBufferMediator extends SharedView implements IBufferMediator {
+        @Override
+        public ByteBuffer getBuffer() {
+            return shared == null ? null : shared.asReadOnlyBuffer();
+        }
+
+        @Override
+        public void release() {
+            drop();
+        }
+    }
+
+    // For a branch that takes arrays while the others share the chunk
+    class CopyingMediator extends SharedView implements IMediator {
+        @Override
+        public Object getData() {
+            if (shared == null) {
+                return null;
+            }
+            ByteBuffer view = shared.duplicate();
+            byte[] copy = BufferPool.BYTES.Borrow(view.remaining());
+            view.get(copy);
+            drop();
+            return copy;
+        }
+    }
+
+    FanOutStage(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public RC setProducer(IProducer newProducer) {
+        if (newProducer == null) {
+            logger.warning("Invalid producer");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+        producer = newProducer;
+        return RC.CODE_SUCCESS;
+    }
+
+    // Every call adds a branch
+    @Override
+    public RC setConsumer(IConsumer newConsumer) {
+        if (newConsumer == null) {
+            logger.warning("Invalid consumer");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+        consumers.add(newConsumer);
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public TYPE[] getOutputTypes() {
+        if (upstreamBufferMediator != null) {
+            return new TYPE[] {TYPE.BYTE};
+        }
+        if (upstreamType != null) {
+            return new TYPE[] {upstreamType};
+        }
+        return producer.getOutputTypes();
+    }
+
+    @Override
+    public IMediator getMediator(TYPE type) {
+        if (upstreamBufferMediator != null) {
+            if (type != TYPE.BYTE) {
+                logger.warning("No such mediator");
+                return null;
+            }
+            CopyingMediator mediator = new CopyingMediator();
+            views.add(mediator);
+            return mediator;
+        }
+
+        if (upstreamMediator == null) {
+            upstreamMediator = producer.getMediator(type);
+            upstreamType = type;
+        }
+        if (upstreamMediator == null || type != upstreamType) {
+            logger.warning("No such mediator");
+            return null;
+        }
+        return new BranchMediator();
+    }
+
+    // Null once a branch pulls arrays, the producer cannot serve both
+    @Override
+    public IBufferMediator getBufferMediator() {
+        if (upstreamMediator != null) {
+            return null;
+        }
+        if (upstreamBufferMediator == null) {
+            if (!(producer instanceof IBufferProducer)) {
+                return null;
+            }
+            upstreamBufferMediator = ((IBufferProducer) producer).getBufferMediator();
+            if (upstreamBufferMediator == null) {
+                return null;
+            }
+        }
+        BranchBufferMediator mediator = new BranchBufferMediator();
+        views.add(mediator);
+        return mediator;
+    }
+
+    @Override
+    public RC execute() {
+        if (upstreamBufferMediator != null) {
+            return executeShared();
+        }
+
+        Object data = upstreamMediator.getData();
+
+        try {
+            for (int i = 0; i < consumers.size(); ++i) {
+                current = (data == null || i == consumers.size() - 1) ? data : copy(data);
+                RC rc = executeBranch(i);
+                if (rc != RC.CODE_SUCCESS) {
+                    return rc;
+                }
+            }
+        } finally {
+            current = null;
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    private RC executeShared() {
+        shared = upstreamBufferMediator.getBuffer();
+        if (shared != null) {
+            references.set(views.size());
+            for (SharedView view : views) {
+                view.acquire();
+            }
+        }
+
+        try {
+            for (int i = 0; i < consumers.size(); ++i) {
+                RC rc = executeBranch(i);
+                if (rc != RC.CODE_SUCCESS) {
+                    return rc;
+                }
+            }
+        } finally {
+            // a failed branch may still hold its view
+            for (SharedView view : views) {
+                view.drop();
+            }
+            shared = null;
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    private RC executeBranch(int i) {
+        RC rc = consumers.get(i).execute();
+        if (rc != RC.CODE_SUCCESS) {
+            logger.severe("error while executing fan-out branch " + i);
+        }
+        return rc;
+    }
+
+    private static Object copy(Object data) {
+        if (data instanceof byte[]) {
+            byte[] source = (byte[]) data;
+            byte[] copy = BufferPool.BYTES.Borrow(source.length);
+            System.arraycopy(source, 0, copy, 0, source.length);
+            return copy;
+        }
+        if (data instanceof short[]) {
+            short[] source = (short[]) data;
+            short[] copy = BufferPool.SHORTS.Borrow(source.length);
+            System.arraycopy(source, 0, copy, 0, source.length);
+            return copy;
+        }
+        char[] source = (char[]) data;
+        char[] copy = BufferPool.CHARS.Borrow(source.length);
+        System.arraycopy(source, 0, copy, 0, source.length);
+        return copy;
+    }
+}
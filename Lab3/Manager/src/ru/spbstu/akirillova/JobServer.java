@@ -0,0 +1,273 @@
+package ru.spbstu.akirillova;
+
+import ru.spbstu.pipeline.RC;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+// Accepts jobs for a resident manager. A client sends one or more jobs, each as
+//     input_file = <path>
+//     output_file = <path>          (or "name: path; name: path" for several writers)
+//     config = <manager config>     (optional, the server's own pipeline otherwise)
+// followed by an empty line, and gets one line with the job's RC name back per job.
+// Relative paths are resolved against the server's working directory.
+class JobServer {
+
+    private static final String JOB_DELIMITER = "=";
+    private static final String INPUT_FILE = "input_file";
+    private static final String OUTPUT_FILE = "output_file";
+    private static final String CONFIG = "config";
+
+    private final PipelineManager defaultManager;
+    private final ExecutorService connections;
+    private final Semaphore jobSlots;
+    private final Logger logger;
+
+    // managers of the job configs, rebuilt when the config file changes
+    private final Map<String, CachedManager> managers = new HashMap<>();
+
+    private ServerSocketChannel channel;
+    private Path socketFile;
+
+    static class CachedManager {
+        final PipelineManager manager;
+        final long lastModified;
+
+        CachedManager(PipelineManager manager, long lastModified) {
+            this.manager = manager;
+            this.lastModified = lastModified;
+        }
+    }
+
+    JobServer(PipelineManager defaultManager, ExecutorService connections, int maxJobs, Logger logger) {
+        this.defaultManager = defaultManager;
+        this.connections = connections;
+        this.jobSlots = new Semaphore(maxJobs, true);
+        this.logger = logger;
+    }
+
+    // Unix domain sockets are there since Java 16, the language level of the project is older
+    // so the channel is opened reflectively. Jobs read and write files with the server's rights, so only
+    // the owner may connect: the socket is bound in a private directory, restricted and only then moved
+    // to its name.
+    RC bindUnix(String socketName) {
+        socketFile = Paths.get(socketName).toAbsolutePath();
+        boolean isPosix = socketFile.getFileSystem().supportedFileAttributeViews().contains("posix");
+        Path privateDir = null;
+        try {
+            Files.deleteIfExists(socketFile);
+            Path boundFile = socketFile;
+            if (isPosix) {
+                privateDir = Files.createTempDirectory(socketFile.getParent(), ".jobs",
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                boundFile = privateDir.resolve("socket");
+            }
+
+            channel = openUnix(boundFile);
+            if (isPosix) {
+                Files.setPosixFilePermissions(boundFile, PosixFilePermissions.fromString("rw-------"));
+                Files.move(boundFile, socketFile, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            logger.severe("Unix domain sockets are not supported by this runtime");
+            return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+        } catch (IOException e) {
+            closeChannel();
+            logger.severe("Cant bind server socket " + socketName);
+            return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+        } finally {
+            deletePrivateDir(privateDir);
+        }
+        logger.info("Listening on " + socketName);
+        return RC.CODE_SUCCESS;
+    }
+
+    private static ServerSocketChannel openUnix(Path socketFile) throws IOException, ReflectiveOperationException {
+        ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+        SocketAddress address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                .getMethod("of", Path.class).invoke(null, socketFile);
+
+        ServerSocketChannel channel = (ServerSocketChannel) ServerSocketChannel.class
+                .getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        try {
+            channel.bind(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warning("Cant close server socket");
+        }
+        channel = null;
+    }
+
+    private void deletePrivateDir(Path privateDir) {
+        if (privateDir == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(privateDir.resolve("socket"));
+            Files.deleteIfExists(privateDir);
+        } catch (IOException e) {
+            logger.warning("Cant delete " + privateDir);
+        }
+    }
+
+    // Runs until the process is stopped.
+    RC serve() {
+        Thread shutdownHook = new Thread(this::close, "pipeline-server-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        RC rc = RC.CODE_SUCCESS;
+        try {
+            while (true) {
+                SocketChannel client = channel.accept();
+                connections.submit(() -> handle(client));
+            }
+        } catch (AsynchronousCloseException e) {
+            // closed by the shutdown hook
+        } catch (IOException e) {
+            logger.severe("Cant accept job connection");
+            rc = RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+        }
+
+        connections.shutdownNow();
+        synchronized (managers) {
+            for (CachedManager cached : managers.values()) {
+                cached.manager.release();
+            }
+            managers.clear();
+        }
+        return rc;
+    }
+
+    private void close() {
+        try {
+            channel.close();
+            if (socketFile != null) {
+                Files.deleteIfExists(socketFile);
+            }
+        } catch (IOException e) {
+            logger.warning("Cant close server socket");
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(client),
+                StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(client),
+                StandardCharsets.UTF_8))) {
+            Map<String, String> job = new HashMap<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    int delimiter = line.indexOf(JOB_DELIMITER);
+                    if (delimiter < 0) {
+                        job.put(line, null);
+                    }
+                    else {
+                        job.put(line.substring(0, delimiter).trim(), line.substring(delimiter + 1).trim());
+                    }
+                    continue;
+                }
+                if (job.isEmpty()) {
+                    continue;
+                }
+
+                out.println(runJob(job));
+                out.flush();
+                job.clear();
+            }
+        } catch (IOException e) {
+            logger.warning("Job connection failed");
+        }
+    }
+
+    private RC runJob(Map<String, String> job) {
+        String input = job.get(INPUT_FILE);
+        String output = job.get(OUTPUT_FILE);
+        if (input == null || output == null || job.size() > (job.containsKey(CONFIG) ? 3 : 2)) {
+            logger.warning("Invalid job " + job);
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+
+        PipelineManager manager = defaultManager;
+        if (job.get(CONFIG) != null) {
+            manager = managerFor(job.get(CONFIG));
+            if (manager == null) {
+                return RC.CODE_CONFIG_SEMANTIC_ERROR;
+            }
+        }
+
+        try {
+            jobSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+        }
+        try {
+            long start = System.nanoTime();
+            RC rc = manager.runJob(Paths.get(input), output);
+            logger.info("Job " + input + " -> " + output + ": " + rc + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+            return rc;
+        } finally {
+            jobSlots.release();
+        }
+    }
+
+    private PipelineManager managerFor(String configFileName) {
+        File config = new File(configFileName).getAbsoluteFile();
+        long lastModified = config.lastModified();
+
+        synchronized (managers) {
+            CachedManager cached = managers.get(config.getPath());
+            if (cached != null && cached.lastModified == lastModified) {
+                return cached.manager;
+            }
+
+            PipelineManager manager = PipelineManager.createManager(config.getPath(), logger);
+            if (manager == null) {
+                logger.warning("Cant create manager for " + configFileName);
+                return null;
+            }
+            if (cached != null) {
+                cached.manager.release();
+            }
+            managers.put(config.getPath(), new CachedManager(manager, lastModified));
+            return manager;
+        }
+    }
+}
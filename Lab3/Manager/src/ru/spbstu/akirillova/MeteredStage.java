@@ -0,0 +1,128 @@
+package ru.spbstu.akirillova;
+
+import ru.spbstu.akirillova.utils.IBufferMediator;
+import ru.spbstu.akirillova.utils.IBufferProducer;
+import ru.spbstu.pipeline.*;
+
+import java.nio.ByteBuffer;
+
+class MeteredStage implements IConsumer, IProducer, IBufferProducer {
+
+    // Time spent in nested downstream calls on this thread, so each stage reports only its own time.
+    private static final ThreadLocal<long[]> nestedNanos = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final IPipelineStep step;
+    private final StageMetrics metrics;
+
+    class MeteredMediator implements IMediator {
+        private final IMediator mediator;
+
+        MeteredMediator(IMediator mediator) {
+            this.mediator = mediator;
+        }
+
+        @Override
+        public Object getData() {
+            long start = System.nanoTime();
+            Object data = mediator.getData();
+            long elapsed = System.nanoTime() - start;
+
+            metrics.addMediatorTime(elapsed);
+            nestedNanos.get()[0] += elapsed;
+            if (data != null) {
+                metrics.addChunk(sizeOf(data));
+            }
+            return data;
+        }
+    }
+
+    class MeteredBufferMediator implements IBufferMediator {
+        private final IBufferMediator mediator;
+
+        MeteredBufferMediator(IBufferMediator mediator) {
+            this.mediator = mediator;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            long start = System.nanoTime();
+            ByteBuffer buffer = mediator.getBuffer();
+            long elapsed = System.nanoTime() - start;
+
+            metrics.addMediatorTime(elapsed);
+            nestedNanos.get()[0] += elapsed;
+            if (buffer != null) {
+                metrics.addChunk(buffer.remaining());
+            }
+            return buffer;
+        }
+
+        @Override
+        public void release() {
+            mediator.release();
+        }
+    }
+
+    MeteredStage(IPipelineStep step, StageMetrics metrics) {
+        this.step = step;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public RC setConsumer(IConsumer newConsumer) {
+        return step.setConsumer(newConsumer);
+    }
+
+    @Override
+    public RC setProducer(IProducer newProducer) {
+        return step.setProducer(newProducer);
+    }
+
+    @Override
+    public TYPE[] getOutputTypes() {
+        return ((IProducer) step).getOutputTypes();
+    }
+
+    @Override
+    public IMediator getMediator(TYPE type) {
+        IMediator mediator = ((IProducer) step).getMediator(type);
+        return mediator == null ? null : new MeteredMediator(mediator);
+    }
+
+    @Override
+    public IBufferMediator getBufferMediator() {
+        if (!(step instanceof IBufferProducer)) {
+            return null;
+        }
+        IBufferMediator mediator = ((IBufferProducer) step).getBufferMediator();
+        return mediator == null ? null : new MeteredBufferMediator(mediator);
+    }
+
+    @Override
+    public RC execute() {
+        long[] nested = nestedNanos.get();
+        long outer = nested[0];
+        nested[0] = 0;
+
+        long start = System.nanoTime();
+        RC rc = ((IConsumer) step).execute();
+        long elapsed = System.nanoTime() - start;
+
+        metrics.addExecute(elapsed - nested[0]);
+        nested[0] = outer + elapsed;
+        return rc;
+    }
+
+    private static long sizeOf(Object data) {
+        if (data instanceof byte[]) {
+            return ((byte[]) data).length;
+        }
+        if (data instanceof short[]) {
+            return 2L * ((short[]) data).length;
+        }
+        if (data instanceof char[]) {
+            return ((char[]) data).length;
+        }
+        return 0;
+    }
+}
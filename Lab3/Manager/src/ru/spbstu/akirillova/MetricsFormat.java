@@ -0,0 +1,25 @@
+package ru.spbstu.akirillova;
+
+enum MetricsFormat {
+    JSON("json"),
+    PROMETHEUS("prometheus");
+
+    private final String name;
+
+    MetricsFormat(String name) {
+        this.name = name;
+    }
+
+    public static MetricsFormat fromString(String name) {
+        for (MetricsFormat format : values()) {
+            if (format.name.equals(name)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    public String toString() {
+        return this.name;
+    }
+}
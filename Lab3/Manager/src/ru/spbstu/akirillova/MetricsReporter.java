@@ -0,0 +1,140 @@
+package ru.spbstu.akirillova;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+class MetricsReporter {
+
+    private final List<StageMetrics> stages;
+    private final String fileName;
+    private final MetricsFormat format;
+    private final Logger logger;
+
+    private ScheduledExecutorService scheduler;
+
+    MetricsReporter(List<StageMetrics> stages, String fileName,
+                    MetricsFormat format, Logger logger) {
+        this.stages = stages;
+        this.fileName = fileName;
+        this.format = format;
+        this.logger = logger;
+    }
+
+    void start(long periodMs) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pipeline-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::write, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        write();
+    }
+
+    private synchronized void write() {
+        File target = new File(fileName);
+        File tmp = new File(fileName + ".tmp");
+        try (PrintWriter out = new PrintWriter(tmp)) {
+            out.print(format == MetricsFormat.PROMETHEUS ? renderPrometheus() : renderJson());
+        } catch (IOException e) {
+            logger.warning("Cant write metrics file");
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warning("Cant write metrics file");
+        }
+    }
+
+    private String renderJson() {
+        StringBuilder sb = new StringBuilder("{\"stages\":[");
+        for (int i = 0; i < stages.size(); ++i) {
+            StageMetrics s = stages.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(String.format(Locale.ROOT,
+                    "{\"index\":%d,\"name\":\"%s\",\"execute_calls\":%d,\"self_time_ns\":%d,\"bytes_in\":%d," +
+                    "\"bytes_out\":%d,\"chunks_out\":%d,\"mediator_time_ns\":%d," +
+                    "\"latency_p50_ns\":%d,\"latency_p99_ns\":%d,\"latency_log2_buckets\":[",
+                    s.index(), s.name(), s.executeCalls(), s.selfNanos(), s.bytesIn(),
+                    s.bytesOut(), s.chunksOut(), s.mediatorNanos(),
+                    s.latencyPercentile(0.5), s.latencyPercentile(0.99)));
+            long[] buckets = s.latencyBuckets();
+            for (int b = 0; b < buckets.length; ++b) {
+                if (b > 0) {
+                    sb.append(',');
+                }
+                sb.append(buckets[b]);
+            }
+            sb.append("]}");
+        }
+        sb.append("]}\n");
+        return sb.toString();
+    }
+
+    // Samples of one metric family have to follow its TYPE line together, so families go outside stages
+    private String renderPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        renderCounter(sb, "pipeline_stage_execute_calls_total", s -> Long.toString(s.executeCalls()));
+        renderCounter(sb, "pipeline_stage_self_seconds_total", s -> seconds(s.selfNanos()));
+        renderCounter(sb, "pipeline_stage_bytes_in_total", s -> Long.toString(s.bytesIn()));
+        renderCounter(sb, "pipeline_stage_bytes_out_total", s -> Long.toString(s.bytesOut()));
+        renderCounter(sb, "pipeline_stage_chunks_out_total", s -> Long.toString(s.chunksOut()));
+        renderCounter(sb, "pipeline_stage_mediator_seconds_total", s -> seconds(s.mediatorNanos()));
+
+        String name = "pipeline_stage_execute_seconds";
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+        for (StageMetrics s : stages) {
+            String labels = labels(s);
+            String base = labels.substring(0, labels.length() - 1);
+            long[] buckets = s.latencyBuckets();
+            long cumulative = 0;
+            for (int b = 0; b < buckets.length; ++b) {
+                cumulative += buckets[b];
+                String le = b == buckets.length - 1 ? "+Inf" : seconds(StageMetrics.bucketUpperBound(b));
+                sb.append(name).append("_bucket").append(base).append(",le=\"").append(le).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            sb.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+            sb.append(name).append("_sum").append(labels).append(' ').append(seconds(s.selfNanos())).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void renderCounter(StringBuilder sb, String name, Function<StageMetrics, String> value) {
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        for (StageMetrics s : stages) {
+            sb.append(name).append(labels(s)).append(' ').append(value.apply(s)).append('\n');
+        }
+    }
+
+    private static String labels(StageMetrics s) {
+        return String.format(Locale.ROOT, "{stage=\"%s\",index=\"%d\"}", s.name(), s.index());
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
@@ -0,0 +1,304 @@
+package ru.spbstu.akirillova;
+
+import ru.spbstu.akirillova.utils.IByteSubstitution;
+import ru.spbstu.akirillova.utils.IReusableStep;
+import ru.spbstu.pipeline.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+class ParallelStage implements IConsumer, IProducer, IByteSubstitution, IReusableStep {
+
+    private final IExecutor[] replicas;
+    private final Replica[] slots;
+    private final BlockingQueue<Replica> idleReplicas;
+
+    private final ForkJoinPool pool;
+    private final int maxInFlight;
+    private final ArrayDeque<CompletableFuture<ChunkResult>> inFlight;
+
+    private IProducer producer;
+    private IConsumer consumer;
+
+    private IMediator upstreamMediator;
+    private Object current;
+
+    private final Logger logger;
+
+    static class ChunkResult {
+        final RC rc;
+        final List<Object> outputs;
+
+        ChunkResult(RC rc, List<Object> outputs) {
+            this.rc = rc;
+            this.outputs = outputs;
+        }
+    }
+
+    class Replica {
+        final IExecutor worker;
+        IMediator outMediator;
+
+        Object input;
+        List<Object> outputs;
+
+        Replica(IExecutor worker) {
+            this.worker = worker;
+        }
+
+        ChunkResult process(Object chunk) {
+            input = chunk;
+            outputs = new ArrayList<>(1);
+            RC rc = worker.execute();
+            ChunkResult result = new ChunkResult(rc, outputs);
+            input = null;
+            outputs = null;
+            return result;
+        }
+    }
+
+    class Feeder implements IProducer {
+        private final Replica replica;
+
+        Feeder(Replica replica) {
+            this.replica = replica;
+        }
+
+        @Override
+        public TYPE[] getOutputTypes() {
+            return producer.getOutputTypes();
+        }
+
+        @Override
+        public IMediator getMediator(TYPE type) {
+            if (upstreamMediator == null) {
+                upstreamMediator = producer.getMediator(type);
+            }
+            return () -> replica.input;
+        }
+
+        @Override
+        public RC setConsumer(IConsumer newConsumer) {
+            return RC.CODE_SUCCESS;
+        }
+
+        @Override
+        public RC setProducer(IProducer newProducer) {
+            return RC.CODE_SUCCESS;
+        }
+    }
+
+    class Collector implements IConsumer {
+        private final Replica replica;
+
+        Collector(Replica replica) {
+            this.replica = replica;
+        }
+
+        @Override
+        public RC execute() {
+            Object data = replica.outMediator.getData();
+            if (data != null) {
+                replica.outputs.add(data);
+            }
+            return RC.CODE_SUCCESS;
+        }
+
+        @Override
+        public RC setConsumer(IConsumer newConsumer) {
+            return RC.CODE_SUCCESS;
+        }
+
+        @Override
+        public RC setProducer(IProducer newProducer) {
+            return RC.CODE_SUCCESS;
+        }
+    }
+
+    class ParallelMediator implements IMediator {
+        @Override
+        public Object getData() {
+            return current;
+        }
+    }
+
+    ParallelStage(IExecutor[] replicas, Logger logger) {
+        this.replicas = replicas;
+        this.logger = logger;
+        this.slots = new Replica[replicas.length];
+        this.idleReplicas = new ArrayBlockingQueue<>(replicas.length);
+        for (int i = 0; i < replicas.length; ++i) {
+            slots[i] = new Replica(replicas[i]);
+            idleReplicas.add(slots[i]);
+        }
+        this.pool = new ForkJoinPool(replicas.length);
+        this.maxInFlight = 2 * replicas.length;
+        this.inFlight = new ArrayDeque<>(maxInFlight);
+    }
+
+    @Override
+    public RC setProducer(IProducer newProducer) {
+        if (newProducer == null) {
+            logger.warning("Invalid producer");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+        producer = newProducer;
+
+        for (Replica replica : slots) {
+            RC rc = replica.worker.setProducer(new Feeder(replica));
+            if (rc != RC.CODE_SUCCESS) {
+                return rc;
+            }
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public RC setConsumer(IConsumer newConsumer) {
+        if (newConsumer == null) {
+            logger.warning("Invalid consumer");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+        consumer = newConsumer;
+
+        for (Replica replica : slots) {
+            RC rc = replica.worker.setConsumer(new Collector(replica));
+            if (rc != RC.CODE_SUCCESS) {
+                return rc;
+            }
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public TYPE[] getOutputTypes() {
+        return replicas[0].getOutputTypes();
+    }
+
+    @Override
+    public IMediator getMediator(TYPE type) {
+        for (Replica replica : slots) {
+            replica.outMediator = replica.worker.getMediator(type);
+            if (replica.outMediator == null) {
+                logger.warning("No such mediator");
+                return null;
+            }
+        }
+        return new ParallelMediator();
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    IExecutor[] replicas() {
+        return replicas;
+    }
+
+    @Override
+    public byte[] getByteMapping() {
+        if (!(replicas[0] instanceof IByteSubstitution)) {
+            return null;
+        }
+        return ((IByteSubstitution) replicas[0]).getByteMapping();
+    }
+
+    @Override
+    public RC setByteMapping(byte[] mapping) {
+        for (IExecutor replica : replicas) {
+            RC rc = ((IByteSubstitution) replica).setByteMapping(mapping);
+            if (rc != RC.CODE_SUCCESS) {
+                return rc;
+            }
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public RC reset() {
+        while (!inFlight.isEmpty()) {
+            inFlight.poll().join();
+        }
+        current = null;
+
+        for (IExecutor replica : replicas) {
+            if (replica instanceof IReusableStep) {
+                RC rc = ((IReusableStep) replica).reset();
+                if (rc != RC.CODE_SUCCESS) {
+                    return rc;
+                }
+            }
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public RC execute() {
+        Object chunk = upstreamMediator.getData();
+
+        if (chunk == null) {
+            while (!inFlight.isEmpty()) {
+                RC rc = emit(inFlight.poll().join());
+                if (rc != RC.CODE_SUCCESS) {
+                    return rc;
+                }
+            }
+            current = null;
+            return consumer.execute();
+        }
+
+        if (inFlight.size() >= maxInFlight) {
+            RC rc = emit(inFlight.poll().join());
+            if (rc != RC.CODE_SUCCESS) {
+                return rc;
+            }
+        }
+
+        inFlight.add(CompletableFuture.supplyAsync(() -> process(chunk), pool));
+
+        while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+            RC rc = emit(inFlight.poll().join());
+            if (rc != RC.CODE_SUCCESS) {
+                return rc;
+            }
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    private ChunkResult process(Object chunk) {
+        Replica replica;
+        try {
+            replica = idleReplicas.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ChunkResult(RC.CODE_FAILED_PIPELINE_CONSTRUCTION, null);
+        }
+        try {
+            return replica.process(chunk);
+        } finally {
+            idleReplicas.add(replica);
+        }
+    }
+
+    private RC emit(ChunkResult result) {
+        if (result.rc != RC.CODE_SUCCESS) {
+            logger.severe("error while executing parallel replica");
+            return result.rc;
+        }
+        for (Object output : result.outputs) {
+            current = output;
+            RC rc = consumer.execute();
+            current = null;
+            if (rc != RC.CODE_SUCCESS) {
+                return rc;
+            }
+        }
+        return RC.CODE_SUCCESS;
+    }
+}
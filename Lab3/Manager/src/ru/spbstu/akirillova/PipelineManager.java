@@ -3,10 +3,37 @@ package ru.spbstu.akirillova;
 import ru.spbstu.pipeline.*;
 import ru.spbstu.akirillova.config.SemanticsBase;
 import ru.spbstu.akirillova.config.Config;
+import ru.spbstu.akirillova.utils.BufferPool;
+import ru.spbstu.akirillova.utils.IByteSubstitution;
+import ru.spbstu.akirillova.utils.IPositionalWriter;
+import ru.spbstu.akirillova.utils.IRangeReader;
+import ru.spbstu.akirillova.utils.IReusableStep;
+import ru.spbstu.akirillova.utils.IStatefulStep;
 import ru.spbstu.akirillova.utils.PipelineBaseGrammar;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 class ManagerGrammar extends PipelineBaseGrammar {
@@ -31,6 +58,9 @@ class ManagerGrammar extends PipelineBaseGrammar {
 class ManagerSemanticsBase extends SemanticsBase {
     private static final String workersDelimiter = ";";
     private static final String workersInnerDelimiter = ",";
+    private static final String elementHeaderDelimiter = ":";
+    private static final String elementSourceDelimiter = "<";
+    private static final String elementNamePattern = "[A-Za-z_][A-Za-z0-9_]*";
 
     public ManagerSemanticsBase(Logger logger) {
         super(logger);
@@ -61,36 +91,186 @@ class ManagerSemanticsBase extends SemanticsBase {
         else if (fieldName.equals(Fields.PIPELINE_STRUCTURE.toString())) {
             return validatePipelineStructure(fieldValue);
         }
+        else if (fieldName.equals(Fields.EXECUTION_MODE.toString())) {
+            if (ExecutionMode.fromString(fieldValue) != null) {
+                return true;
+            }
+            GetLogger().warning("Unknown execution mode " + fieldValue);
+            return false;
+        }
+        else if (fieldName.equals(Fields.QUEUE_CAPACITY.toString())) {
+            return IsPositiveInt(fieldValue);
+        }
+        else if (fieldName.equals(Fields.PARALLELISM.toString())) {
+            return IsPositiveInt(fieldValue);
+        }
+        else if (fieldName.equals(Fields.METRICS_FILE.toString())) {
+            return true;
+        }
+        else if (fieldName.equals(Fields.METRICS_FORMAT.toString())) {
+            if (MetricsFormat.fromString(fieldValue) != null) {
+                return true;
+            }
+            GetLogger().warning("Unknown metrics format " + fieldValue);
+            return false;
+        }
+        else if (fieldName.equals(Fields.METRICS_PERIOD.toString())) {
+            return IsPositiveInt(fieldValue);
+        }
+        else if (fieldName.equals(Fields.INPUT_DIR.toString())) {
+            if (Files.isDirectory(Paths.get(fieldValue))) {
+                return true;
+            }
+            GetLogger().warning("Invalid input directory");
+            return false;
+        }
+        else if (fieldName.equals(Fields.INPUT_GLOB.toString())) {
+            try {
+                FileSystems.getDefault().getPathMatcher("glob:" + fieldValue);
+            } catch (IllegalArgumentException e) {
+                GetLogger().warning("Invalid input glob " + fieldValue);
+                return false;
+            }
+            return true;
+        }
+        else if (fieldName.equals(Fields.OUTPUT_DIR.toString())) {
+            return true;
+        }
+        else if (fieldName.equals(Fields.BATCH_WORKERS.toString())) {
+            return IsPositiveInt(fieldValue);
+        }
+        else if (fieldName.equals(Fields.SERVER_SOCKET.toString())) {
+            return true;
+        }
+        else if (fieldName.equals(Fields.MAX_JOBS.toString())) {
+            return IsPositiveInt(fieldValue);
+        }
+        else if (fieldName.equals(Fields.PARTITIONS.toString())) {
+            return IsPositiveInt(fieldValue);
+        }
+        else if (fieldName.equals(Fields.THREAD_BACKEND.toString())) {
+            if (ThreadBackend.fromString(fieldValue) != null) {
+                return true;
+            }
+            GetLogger().warning("Unknown thread backend " + fieldValue);
+            return false;
+        }
         else {
             GetLogger().warning("Unknown field " + fieldName);
         }
         return true;
     }
 
-    private boolean validatePipelineStructure(String pStruct) {
+    // Elements are "[name [< source]:] class, config". An element without a source reads from the one
+    // before it, so a plain list is the linear chain and named sources branch it into a tree.
+    static class Element {
+        String name;
+        int source;
+        String worker;
+        String configFile;
+    }
+
+    static Element[] parsePipeline(String pStruct, Logger logger) {
         String[] workerStrings = pStruct.split(workersDelimiter());
+        Element[] elements = new Element[workerStrings.length];
+        Map<String, Integer> names = new HashMap<>();
 
         for (int workerId = 0; workerId < workerStrings.length; ++workerId) {
-            String[] workerParams = workerStrings[workerId].split(ManagerSemanticsBase.workersInnerDelimiter());
+            String workerString = workerStrings[workerId];
+            Element element = new Element();
+            element.source = workerId - 1;
+
+            int header = workerString.indexOf(elementHeaderDelimiter);
+            int inner = workerString.indexOf(workersInnerDelimiter);
+            if (header >= 0 && (inner < 0 || header < inner)) {
+                String[] nameAndSource = workerString.substring(0, header).split(elementSourceDelimiter);
+                workerString = workerString.substring(header + 1);
+
+                if (nameAndSource.length > 2) {
+                    logger.warning("Invalid element header");
+                    return null;
+                }
+                element.name = nameAndSource[0].trim();
+                if (!element.name.matches(elementNamePattern) || names.containsKey(element.name)) {
+                    logger.warning("Invalid element name " + element.name);
+                    return null;
+                }
+                if (nameAndSource.length == 2) {
+                    Integer source = names.get(nameAndSource[1].trim());
+                    if (source == null) {
+                        logger.warning("Unknown source " + nameAndSource[1].trim() + ", sources must come first");
+                        return null;
+                    }
+                    element.source = source;
+                }
+                names.put(element.name, workerId);
+            }
 
+            String[] workerParams = workerString.split(workersInnerDelimiter);
             if (workerParams.length != 2) {
-                GetLogger().warning("Invalid element");
-                return false;
+                logger.warning("Invalid element");
+                return null;
             }
+            element.worker = workerParams[0].trim();
+            element.configFile = workerParams[1].trim();
+            elements[workerId] = element;
+        }
+        return elements;
+    }
 
-            for (int i = 0; i < workerParams.length; ++i) {
-                workerParams[i] = workerParams[i].trim();
+    // Steps nobody reads from are the writers of the pipeline
+    static boolean[] findWriters(Element[] elements) {
+        boolean[] isWriter = new boolean[elements.length];
+        Arrays.fill(isWriter, true);
+        for (Element element : elements) {
+            if (element.source >= 0) {
+                isWriter[element.source] = false;
             }
+        }
+        return isWriter;
+    }
+
+    private boolean validatePipelineStructure(String pStruct) {
+        Element[] elements = parsePipeline(pStruct, GetLogger());
+        if (elements == null) {
+            return false;
+        }
+        boolean[] isWriter = findWriters(elements);
+
+        int writers = 0;
+        for (int workerId = 0; workerId < elements.length; ++workerId) {
+            Element element = elements[workerId];
 
-            if (!validatePipelineStepClass(workerParams[0]) || !IsFile(workerParams[1])) {
+            if (!validatePipelineStepClass(element.worker) || !IsFile(element.configFile)) {
                 GetLogger().warning("Invalid element");
                 return false;
             }
 
-            if (workerId == 0 && !validateIReader(workerParams[0]) || workerId == workerStrings.length - 1 && !validateIWriter(workerParams[0])) {
+            if (workerId == 0 && !validateIReader(element.worker) || isWriter[workerId] && !validateIWriter(element.worker)) {
                 GetLogger().warning("Invalid element");
                 return false;
             }
+
+            // an element without a source reads from the one before it, which must produce something
+            if (!isWriter[workerId] && !validateIProducer(element.worker)) {
+                GetLogger().warning(element.worker + " produces nothing but has consumers");
+                return false;
+            }
+            if (workerId > 0 && !validateIConsumer(element.worker)) {
+                GetLogger().warning(element.worker + " consumes nothing but has a source");
+                return false;
+            }
+
+            if (isWriter[workerId]) {
+                ++writers;
+            }
+        }
+
+        for (int workerId = 0; writers > 1 && workerId < elements.length; ++workerId) {
+            if (isWriter[workerId] && elements[workerId].name == null) {
+                GetLogger().warning("Every writer needs a name when the pipeline has several");
+                return false;
+            }
         }
         return true;
     }
@@ -121,6 +301,32 @@ class ManagerSemanticsBase extends SemanticsBase {
         return true;
     }
 
+    private boolean validateIProducer(String className) {
+        try {
+            Class<?> clazz = Class.forName(className);
+
+            if (!IProducer.class.isAssignableFrom(clazz)) {
+                return false;
+            }
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private boolean validateIConsumer(String className) {
+        try {
+            Class<?> clazz = Class.forName(className);
+
+            if (!IConsumer.class.isAssignableFrom(clazz)) {
+                return false;
+            }
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+        return true;
+    }
+
     private boolean validatePipelineStepClass(String className) {
         try {
             Class<?> clazz = Class.forName(className);
@@ -142,7 +348,21 @@ class ManagerSemanticsBase extends SemanticsBase {
     public enum Fields {
         INPUT_FILE("input_file"),
         OUTPUT_FILE("output_file"),
-        PIPELINE_STRUCTURE("pipeline");
+        PIPELINE_STRUCTURE("pipeline"),
+        EXECUTION_MODE("execution_mode"),
+        QUEUE_CAPACITY("queue_capacity"),
+        PARALLELISM("parallelism"),
+        METRICS_FILE("metrics_file"),
+        METRICS_FORMAT("metrics_format"),
+        METRICS_PERIOD("metrics_period_ms"),
+        INPUT_DIR("input_dir"),
+        INPUT_GLOB("input_glob"),
+        OUTPUT_DIR("output_dir"),
+        BATCH_WORKERS("batch_workers"),
+        SERVER_SOCKET("server_socket"),
+        MAX_JOBS("max_jobs"),
+        THREAD_BACKEND("thread_backend"),
+        PARTITIONS("partitions");
 
         private final String name;
 
@@ -154,23 +374,106 @@ class ManagerSemanticsBase extends SemanticsBase {
             return this.name;
         }
     }
+
+    public enum ThreadBackend {
+        PLATFORM("platform"),
+        VIRTUAL("virtual");
+
+        private final String name;
+
+        ThreadBackend(String name) {
+            this.name = name;
+        }
+
+        public static ThreadBackend fromString(String name) {
+            for (ThreadBackend backend : values()) {
+                if (backend.name.equals(name)) {
+                    return backend;
+                }
+            }
+            return null;
+        }
+
+        public String toString() {
+            return this.name;
+        }
+    }
+
+    public enum ExecutionMode {
+        SEQUENTIAL("sequential"),
+        THREADED("threaded");
+
+        private final String name;
+
+        ExecutionMode(String name) {
+            this.name = name;
+        }
+
+        public static ExecutionMode fromString(String name) {
+            for (ExecutionMode mode : values()) {
+                if (mode.name.equals(name)) {
+                    return mode;
+                }
+            }
+            return null;
+        }
+
+        public String toString() {
+            return this.name;
+        }
+    }
 }
 
 public class PipelineManager implements IConfigurable {
 
+    private static final int DEFAULT_QUEUE_CAPACITY = 16;
+    private static final int DEFAULT_METRICS_PERIOD_MS = 1000;
+
+    private static final String DEFAULT_INPUT_GLOB = "*";
+    private static final long MIN_PARTITION_SIZE = 1024 * 1024;
+
     private String inputFileName;
     private String outputFileName;
 
+    private String inputDirName;
+    private String inputGlob = DEFAULT_INPUT_GLOB;
+    private String outputDirName;
+    private int batchWorkers = Runtime.getRuntime().availableProcessors();
+
+    private String serverSocketName;
+    private int maxJobs = Runtime.getRuntime().availableProcessors();
+
+    // warm pipelines of the server mode, shared by all jobs that use this config
+    private final Queue<Pipeline> idlePipelines = new ConcurrentLinkedQueue<>();
+    private final List<StageMetrics> jobMetrics = new ArrayList<>();
+    private volatile boolean isReleased;
+
+    private ManagerSemanticsBase.ExecutionMode executionMode = ManagerSemanticsBase.ExecutionMode.SEQUENTIAL;
+    private ManagerSemanticsBase.ThreadBackend threadBackend = ManagerSemanticsBase.ThreadBackend.PLATFORM;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int parallelism = 1;
+    private int partitions = 1;
+
+    private String metricsFileName;
+    private MetricsFormat metricsFormat = MetricsFormat.JSON;
+    private int metricsPeriodMs = DEFAULT_METRICS_PERIOD_MS;
+
     class ConfigMapping {
+        String name;
+        int source;
         String worker;
         String configFile;
-        public ConfigMapping(String wrk, String cfg) {
+        public ConfigMapping(String name, int src, String wrk, String cfg) {
+            this.name = name;
+            source = src;
             worker = wrk;
             configFile = cfg;
         }
     }
 
     private ConfigMapping[] workerConfigMapping;
+    // writer steps in config order, outputs are given in this order
+    private final List<Integer> writerIds = new ArrayList<>();
 
     private final Logger logger;
 
@@ -196,88 +499,776 @@ public class PipelineManager implements IConfigurable {
             return rc;
         }
 
-        setFieldsFromConfig(cfg);
+        return setFieldsFromConfig(cfg);
+    }
 
-        return RC.CODE_SUCCESS;
+    // Workers of one pipeline instance, built and linked once and reused for every stream it runs.
+    class Pipeline {
+        IPipelineStep[] workers;
+        IPipelineStep[] meteredWorkers;
+        StageLink[] links;
+        // positions of the writers in workers, in the order of writerIds
+        int[] writers;
+        boolean isUsed;
     }
 
     public RC run() {
+        if (serverSocketName != null) {
+            return runServer();
+        }
+        if (inputDirName != null) {
+            return runBatch();
+        }
+        if (inputFileName == null || outputFileName == null) {
+            logger.severe("Expected input_file and output_file or input_dir and output_dir");
+            return RC.CODE_CONFIG_SEMANTIC_ERROR;
+        }
+
+        List<Path> outputs = new ArrayList<>();
+        RC rc = outputPaths(outputFileName, outputs);
+        if (rc != RC.CODE_SUCCESS) {
+            return rc;
+        }
+
+        List<StageMetrics> metrics = new ArrayList<>();
+        Pipeline pipeline = new Pipeline();
+        rc = buildPipeline(metrics, pipeline);
+        if (rc != RC.CODE_SUCCESS) {
+            return rc;
+        }
+
+        MetricsReporter reporter = startReporter(metrics);
+
+        if (partitions > 1 && isPartitionable(pipeline)) {
+            rc = runPartitioned(Paths.get(inputFileName), outputs.get(0), pipeline, metrics);
+        }
+        else {
+            rc = processFile(Paths.get(inputFileName), outputs, pipeline, metrics);
+        }
+
+        releaseWorkers(pipeline.workers);
+
+        stopReporter(reporter, metrics);
+
+        if (rc != RC.CODE_SUCCESS) {
+            logger.severe("Unable to execute pipeline");
+        }
+
+        logBufferPool();
+
+        return rc;
+    }
+
+    // Every matching file of the input directory is run through its own pipeline instance into output_dir,
+    // batch_workers instances are built once and handed from file to file.
+    private RC runBatch() {
+        List<Path> inputs = new ArrayList<>();
+        RC rc = listInputs(inputs);
+        if (rc != RC.CODE_SUCCESS) {
+            return rc;
+        }
+        if (inputs.isEmpty()) {
+            logger.warning("No input files match " + inputGlob + " in " + inputDirName);
+            return RC.CODE_SUCCESS;
+        }
+
+        try {
+            Files.createDirectories(Paths.get(outputDirName));
+            for (int writer = 0; writerIds.size() > 1 && writer < writerIds.size(); ++writer) {
+                Files.createDirectories(batchOutput(writer, Paths.get("")));
+            }
+        } catch (IOException e) {
+            logger.severe("Cant create output directory");
+            return RC.CODE_INVALID_OUTPUT_STREAM;
+        }
+
+        int slots = Math.min(batchWorkers, inputs.size());
+        List<StageMetrics> metrics = new ArrayList<>();
+        BlockingQueue<Pipeline> idlePipelines = new ArrayBlockingQueue<>(slots);
+        for (int i = 0; i < slots; ++i) {
+            Pipeline pipeline = new Pipeline();
+            rc = buildPipeline(metrics, pipeline);
+            if (rc != RC.CODE_SUCCESS) {
+                releasePipelines(idlePipelines);
+                return rc;
+            }
+            idlePipelines.add(pipeline);
+        }
+        logger.info("Batch of " + inputs.size() + " files runs on " + slots + " pipelines");
+
+        MetricsReporter reporter = startReporter(metrics);
+
+        ExecutorService pool = newPool(slots, "pipeline-batch");
+        List<Future<RC>> files = new ArrayList<>();
+        for (Path input : inputs) {
+            files.add(pool.submit(() -> processFile(input, idlePipelines, metrics)));
+        }
+        pool.shutdown();
+
+        RC failure = null;
+        int failed = 0;
+        for (Future<RC> file : files) {
+            RC fileRc;
+            try {
+                fileRc = file.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fileRc = RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+            } catch (ExecutionException e) {
+                logger.severe("Batch file crashed: " + e.getCause());
+                fileRc = RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+            }
+            if (fileRc != RC.CODE_SUCCESS) {
+                ++failed;
+                if (failure == null) {
+                    failure = fileRc;
+                }
+            }
+        }
+
+        releasePipelines(idlePipelines);
+
+        stopReporter(reporter, metrics);
+
+        logger.info("Batch done: " + (inputs.size() - failed) + " files processed, " + failed + " failed");
+        logBufferPool();
+
+        return failure == null ? RC.CODE_SUCCESS : failure;
+    }
+
+    // Stays resident and runs the jobs submitted over the server socket, see JobServer.
+    private RC runServer() {
+        Pipeline pipeline = new Pipeline();
+        RC rc = buildPipeline(jobMetrics, pipeline);
+        if (rc != RC.CODE_SUCCESS) {
+            return rc;
+        }
+        idlePipelines.add(pipeline);
+
+        MetricsReporter reporter = startReporter(jobMetrics);
+
+        ExecutorService connections;
+        if (threadBackend == ManagerSemanticsBase.ThreadBackend.VIRTUAL) {
+            connections = newThreadPerTaskExecutor(newVirtualThreadFactory("pipeline-job"));
+        }
+        else {
+            connections = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "pipeline-job");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        JobServer server = new JobServer(this, connections, maxJobs, logger);
+        rc = server.bindUnix(serverSocketName);
+        if (rc == RC.CODE_SUCCESS) {
+            rc = server.serve();
+        }
+
+        release();
+        stopReporter(reporter, jobMetrics);
+        logBufferPool();
+        return rc;
+    }
+
+    // One job of the server: a warm pipeline is taken if there is an idle one, otherwise another one is built.
+    RC runJob(Path input, String outputSpec) {
+        List<Path> outputs = new ArrayList<>();
+        RC outputRc = outputPaths(outputSpec, outputs);
+        if (outputRc != RC.CODE_SUCCESS) {
+            return outputRc;
+        }
+
+        Pipeline pipeline = idlePipelines.poll();
+        if (pipeline == null) {
+            pipeline = new Pipeline();
+            RC rc;
+            synchronized (jobMetrics) {
+                rc = buildPipeline(jobMetrics, pipeline);
+            }
+            if (rc != RC.CODE_SUCCESS) {
+                return rc;
+            }
+        }
+
+        RC rc = processFile(input, outputs, pipeline, jobMetrics);
+
+        idlePipelines.add(pipeline);
+        if (isReleased) {
+            release();
+        }
+        return rc;
+    }
+
+    // Releases the warm pipelines, the ones busy with a job are released when it ends.
+    void release() {
+        isReleased = true;
+        Pipeline pipeline;
+        while ((pipeline = idlePipelines.poll()) != null) {
+            releaseWorkers(pipeline.workers);
+        }
+    }
+
+    private RC listInputs(List<Path> inputs) {
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get(inputDirName), inputGlob)) {
+            for (Path input : dir) {
+                if (Files.isRegularFile(input)) {
+                    inputs.add(input);
+                }
+            }
+        } catch (IOException e) {
+            logger.severe("Cant list input directory");
+            return RC.CODE_INVALID_INPUT_STREAM;
+        }
+        Collections.sort(inputs);
+        return RC.CODE_SUCCESS;
+    }
+
+    private RC processFile(Path input, BlockingQueue<Pipeline> idlePipelines, List<StageMetrics> metrics)
+            throws InterruptedException {
+        List<Path> outputs = new ArrayList<>();
+        for (int writer = 0; writer < writerIds.size(); ++writer) {
+            outputs.add(batchOutput(writer, input.getFileName()));
+        }
+
+        Pipeline pipeline = idlePipelines.take();
+        try {
+            return processFile(input, outputs, pipeline, metrics);
+        } finally {
+            idlePipelines.add(pipeline);
+        }
+    }
+
+    // output_dir/<file>, or output_dir/<writer>/<file> when the pipeline has several writers
+    private Path batchOutput(int writer, Path fileName) {
+        Path outputDir = Paths.get(outputDirName);
+        if (writerIds.size() > 1) {
+            outputDir = outputDir.resolve(workerConfigMapping[writerIds.get(writer)].name);
+        }
+        return outputDir.resolve(fileName);
+    }
+
+    // A single writer takes the whole spec as its path, several writers are given as "name: path; name: path".
+    private RC outputPaths(String spec, List<Path> outputs) {
+        if (writerIds.size() == 1) {
+            outputs.add(Paths.get(spec.trim()));
+            return RC.CODE_SUCCESS;
+        }
+
+        Path[] paths = new Path[writerIds.size()];
+        for (String output : spec.split(ManagerSemanticsBase.workersDelimiter())) {
+            int delimiter = output.indexOf(':');
+            String name = (delimiter < 0) ? "" : output.substring(0, delimiter).trim();
+
+            int writer = 0;
+            while (writer < writerIds.size() && !workerConfigMapping[writerIds.get(writer)].name.equals(name)) {
+                ++writer;
+            }
+            if (writer == writerIds.size() || paths[writer] != null) {
+                logger.severe("Invalid output " + output.trim());
+                return RC.CODE_INVALID_ARGUMENT;
+            }
+            paths[writer] = Paths.get(output.substring(delimiter + 1).trim());
+        }
+
+        for (int writer = 0; writer < paths.length; ++writer) {
+            if (paths[writer] == null) {
+                logger.severe("No output for " + workerConfigMapping[writerIds.get(writer)].name);
+                return RC.CODE_INVALID_ARGUMENT;
+            }
+            outputs.add(paths[writer]);
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    private RC processFile(Path input, List<Path> outputs, Pipeline pipeline, List<StageMetrics> metrics) {
+        for (Path output : outputs) {
+            if (isSameFile(input, output)) {
+                logger.severe("Output file " + output + " is the input file");
+                return RC.CODE_INVALID_OUTPUT_STREAM;
+            }
+        }
+
+        // outputs are truncated only once the pipeline is ready for them
+        if (pipeline.isUsed) {
+            RC rc = resetPipeline(pipeline, metrics);
+            if (rc != RC.CODE_SUCCESS) {
+                logger.severe("Unable to process " + input);
+                return rc;
+            }
+        }
+
         FileInputStream inputStream = null;
-        FileOutputStream outputStream = null;
+        List<FileOutputStream> outputStreams = new ArrayList<>();
         try {
-            inputStream = new FileInputStream(inputFileName);
+            inputStream = new FileInputStream(input.toFile());
         }
         catch (FileNotFoundException e) {
-            logger.severe("Cant open input file");
+            logger.severe("Cant open input file " + input);
+            return RC.CODE_INVALID_INPUT_STREAM;
+        }
+        for (Path output : outputs) {
+            try {
+                outputStreams.add(new FileOutputStream(output.toFile()));
+            }
+            catch (FileNotFoundException e) {
+                closeStream(inputStream);
+                outputStreams.forEach(this::closeStream);
+                logger.severe("Cant open output file " + output);
+                return RC.CODE_INVALID_OUTPUT_STREAM;
+            }
+        }
+
+        RC rc = process(pipeline, inputStream, outputStreams);
+
+        closeStream(inputStream);
+        outputStreams.forEach(this::closeStream);
+
+        if (rc != RC.CODE_SUCCESS) {
+            logger.severe("Unable to process " + input);
+        }
+        return rc;
+    }
+
+    private static boolean isSameFile(Path first, Path second) {
+        try {
+            return Files.exists(first) && Files.exists(second) && Files.isSameFile(first, second);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Ranges of the input are independent only when every step between the reader and the single writer
+    // maps each byte to exactly one byte.
+    private boolean isPartitionable(Pipeline pipeline) {
+        IPipelineStep[] workers = pipeline.workers;
+        if (pipeline.writers.length != 1) {
+            logger.warning("partitions is ignored, the pipeline has several writers");
+            return false;
+        }
+        if (!(workers[0] instanceof IRangeReader) || !(workers[pipeline.writers[0]] instanceof IPositionalWriter)) {
+            logger.warning("partitions is ignored, the reader or the writer cant work on ranges");
+            return false;
+        }
+        for (int i = 1; i < workers.length; ++i) {
+            if (i != pipeline.writers[0] && byteMapping(workers[i]) == null) {
+                logger.warning("partitions is ignored, " + workers[i].getClass().getName()
+                        + " is not a byte substitution");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Every range of the input runs through its own pipeline instance, all at once. The output is allocated
+    // to the input size up front and each writer fills its own range of it.
+    private RC runPartitioned(Path input, Path output, Pipeline first, List<StageMetrics> metrics) {
+        if (isSameFile(input, output)) {
+            logger.severe("Output file " + output + " is the input file");
+            return RC.CODE_INVALID_OUTPUT_STREAM;
+        }
+
+        long size;
+        try {
+            size = Files.size(input);
+        } catch (IOException e) {
+            logger.severe("Cant open input file " + input);
             return RC.CODE_INVALID_INPUT_STREAM;
         }
+        try (RandomAccessFile outputFile = new RandomAccessFile(output.toFile(), "rw")) {
+            outputFile.setLength(size);
+        } catch (IOException e) {
+            logger.severe("Cant open output file " + output);
+            return RC.CODE_INVALID_OUTPUT_STREAM;
+        }
+
+        int count = (int) Math.max(1, Math.min(partitions, size / MIN_PARTITION_SIZE));
+        long rangeSize = (size + count - 1) / count;
+
+        List<Pipeline> pipelines = new ArrayList<>();
+        pipelines.add(first);
+        RC rc = RC.CODE_SUCCESS;
+        for (int i = 1; rc == RC.CODE_SUCCESS && i < count; ++i) {
+            Pipeline pipeline = new Pipeline();
+            rc = buildPipeline(metrics, pipeline);
+            if (rc == RC.CODE_SUCCESS) {
+                pipelines.add(pipeline);
+            }
+        }
+        if (rc == RC.CODE_SUCCESS) {
+            logger.info("Input of " + size + " bytes runs in " + count + " ranges");
+            rc = runRanges(input, output, pipelines, size, rangeSize);
+        }
+
+        for (Pipeline pipeline : pipelines.subList(1, pipelines.size())) {
+            releaseWorkers(pipeline.workers);
+        }
+        return rc;
+    }
+
+    private RC runRanges(Path input, Path output, List<Pipeline> pipelines, long size, long rangeSize) {
+        ExecutorService pool = newPool(pipelines.size(), "pipeline-range");
+        List<Future<RC>> ranges = new ArrayList<>();
+        for (int i = 0; i < pipelines.size(); ++i) {
+            Pipeline pipeline = pipelines.get(i);
+            long position = i * rangeSize;
+            long length = Math.min(rangeSize, size - position);
+            ranges.add(pool.submit(() -> processRange(input, output, position, length, pipeline)));
+        }
+        pool.shutdown();
+
+        RC failure = null;
+        for (Future<RC> range : ranges) {
+            RC rangeRc;
+            try {
+                rangeRc = range.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rangeRc = RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+            } catch (ExecutionException e) {
+                logger.severe("Input range crashed: " + e.getCause());
+                rangeRc = RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+            }
+            if (rangeRc != RC.CODE_SUCCESS && failure == null) {
+                failure = rangeRc;
+            }
+        }
+        return failure == null ? RC.CODE_SUCCESS : failure;
+    }
+
+    private RC processRange(Path input, Path output, long position, long length, Pipeline pipeline) {
+        FileInputStream inputStream;
         try {
-            outputStream = new FileOutputStream(outputFileName);
+            inputStream = new FileInputStream(input.toFile());
         }
         catch (FileNotFoundException e) {
+            logger.severe("Cant open input file " + input);
+            return RC.CODE_INVALID_INPUT_STREAM;
+        }
+        // opened without truncating, the other ranges are written to the same file
+        RandomAccessFile outputFile;
+        FileOutputStream outputStream;
+        try {
+            outputFile = new RandomAccessFile(output.toFile(), "rw");
+            outputStream = new FileOutputStream(outputFile.getFD());
+        }
+        catch (IOException e) {
             closeStream(inputStream);
-            logger.severe("Cant open output file");
+            logger.severe("Cant open output file " + output);
             return RC.CODE_INVALID_OUTPUT_STREAM;
         }
 
+        RC rc = setStreams(pipeline, inputStream, Collections.singletonList(outputStream));
+        if (rc == RC.CODE_SUCCESS) {
+            rc = ((IRangeReader) pipeline.workers[0]).setRange(position, length);
+        }
+        if (rc == RC.CODE_SUCCESS) {
+            rc = ((IPositionalWriter) pipeline.workers[pipeline.writers[0]]).setPosition(position);
+        }
+        if (rc == RC.CODE_SUCCESS) {
+            rc = execute(pipeline);
+        }
+
+        closeStream(inputStream);
+        closeStream(outputStream);
+        closeStream(outputFile);
+
+        if (rc != RC.CODE_SUCCESS) {
+            logger.severe("Unable to process range at " + position + " of " + input);
+        }
+        return rc;
+    }
+
+    private RC buildPipeline(List<StageMetrics> metrics, Pipeline pipeline) {
         IPipelineStep[] workers = new IPipelineStep[workerConfigMapping.length];
 
-        RC rc = createWorkers(inputStream, outputStream, workers);
+        RC rc = createWorkers(workers);
         if (rc != RC.CODE_SUCCESS) {
-            closeStream(inputStream);
-            closeStream(outputStream);
+            releaseWorkers(workers);
             logger.severe("Cant create workers");
             return rc;
         }
 
-        rc = putWorkersInChain(workers);
+        int[] sources = new int[workers.length];
+        for (int workerId = 0; workerId < workers.length; ++workerId) {
+            sources[workerId] = workerConfigMapping[workerId].source;
+        }
+        int[] positions = new int[workers.length];
+        List<String> stageNames = new ArrayList<>();
+        IPipelineStep[] configured = workers;
+        workers = fuseSubstitutions(workers, sources, positions, stageNames);
+        if (workers == null) {
+            logger.severe("Cant fuse substitution stages");
+            return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+        }
+
+        List<List<Integer>> consumers = new ArrayList<>();
+        for (int i = 0; i < workers.length; ++i) {
+            consumers.add(new ArrayList<>());
+        }
+        for (int workerId = 0; workerId < configured.length; ++workerId) {
+            if (positions[workerId] >= 0 && sources[workerId] >= 0) {
+                consumers.get(positions[sources[workerId]]).add(positions[workerId]);
+            }
+        }
+        if (metrics.isEmpty()) {
+            logger.info("Pipeline plan: " + plan(0, consumers, stageNames));
+        }
+
+        // every instance of a batch reports into the same metrics, one entry per stage
+        boolean isThreaded = executionMode == ManagerSemanticsBase.ExecutionMode.THREADED;
+        List<StageLink> links = new ArrayList<>();
+        int meterIndex = 0;
+        IPipelineStep[] meteredWorkers = new IPipelineStep[workers.length];
+        IPipelineStep[] meteredLinks = new IPipelineStep[workers.length];
+        StageMetrics[] inputMetrics = new StageMetrics[workers.length];
+        for (int i = 0; i < workers.length; ++i) {
+            meteredWorkers[i] = meter(workers[i], stageNames.get(i), metrics, meterIndex, inputMetrics[i]);
+            StageMetrics workerMetrics = metrics.get(meterIndex++);
+
+            for (int consumer : consumers.get(i)) {
+                inputMetrics[consumer] = workerMetrics;
+                if (isThreaded) {
+                    StageLink link = new StageLink(queueCapacity, logger);
+                    links.add(link);
+                    meteredLinks[consumer] = meter(link, "queue", metrics, meterIndex, workerMetrics);
+                    inputMetrics[consumer] = metrics.get(meterIndex++);
+                }
+            }
+        }
+
+        rc = putWorkersInGraph(meteredWorkers, meteredLinks, consumers);
         if (rc != RC.CODE_SUCCESS) {
+            releaseWorkers(workers);
             logger.severe("Cant construct pipeline");
             return rc;
         }
-        rc = ((IConsumer)workers[0]).execute();
 
-        closeStream(inputStream);
-        closeStream(outputStream);
+        pipeline.workers = workers;
+        pipeline.meteredWorkers = meteredWorkers;
+        pipeline.links = isThreaded ? links.toArray(new StageLink[0]) : null;
+        pipeline.writers = new int[writerIds.size()];
+        for (int writer = 0; writer < writerIds.size(); ++writer) {
+            pipeline.writers[writer] = positions[writerIds.get(writer)];
+        }
+        pipeline.isUsed = false;
+        return RC.CODE_SUCCESS;
+    }
 
+    private String plan(int worker, List<List<Integer>> consumers, List<String> stageNames) {
+        StringBuilder plan = new StringBuilder(stageNames.get(worker));
+        List<Integer> next = consumers.get(worker);
+        if (next.size() == 1) {
+            plan.append(" -> ").append(plan(next.get(0), consumers, stageNames));
+        }
+        else if (next.size() > 1) {
+            plan.append(" -> [");
+            for (int i = 0; i < next.size(); ++i) {
+                plan.append(i == 0 ? "" : " | ").append(plan(next.get(i), consumers, stageNames));
+            }
+            plan.append("]");
+        }
+        return plan.toString();
+    }
+
+    private RC process(Pipeline pipeline, FileInputStream inputStream, List<FileOutputStream> outputStreams) {
+        RC rc = setStreams(pipeline, inputStream, outputStreams);
         if (rc != RC.CODE_SUCCESS) {
-            logger.severe("Unable to execute pipeline");
+            return rc;
         }
+        return execute(pipeline);
+    }
 
+    private RC setStreams(Pipeline pipeline, FileInputStream inputStream, List<FileOutputStream> outputStreams) {
+        IPipelineStep[] workers = pipeline.workers;
+        pipeline.isUsed = true;
+
+        RC rc = ((IReader)workers[0]).setInputStream(inputStream);
+        for (int writer = 0; rc == RC.CODE_SUCCESS && writer < pipeline.writers.length; ++writer) {
+            rc = ((IWriter)workers[pipeline.writers[writer]]).setOutputStream(outputStreams.get(writer));
+        }
         return rc;
     }
 
-    private void setFieldsFromConfig(Config cfg) {
+    private RC execute(Pipeline pipeline) {
+        if (pipeline.links == null) {
+            return ((IConsumer)pipeline.meteredWorkers[0]).execute();
+        }
+        return runThreaded(pipeline.meteredWorkers, pipeline.links);
+    }
+
+    // Steps that cant drop their per-stream state are rebuilt instead.
+    private RC resetPipeline(Pipeline pipeline, List<StageMetrics> metrics) {
+        boolean isReusable = true;
+        for (IPipelineStep worker : pipeline.workers) {
+            isReusable &= worker instanceof IReusableStep;
+        }
+        if (!isReusable) {
+            releaseWorkers(pipeline.workers);
+            return buildPipeline(metrics, pipeline);
+        }
+
+        for (IPipelineStep worker : pipeline.workers) {
+            RC rc = ((IReusableStep) worker).reset();
+            if (rc != RC.CODE_SUCCESS) {
+                logger.severe("Cant reset pipeline");
+                return rc;
+            }
+        }
+        if (pipeline.links != null) {
+            for (StageLink link : pipeline.links) {
+                link.reset();
+            }
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    private void releasePipelines(BlockingQueue<Pipeline> pipelines) {
+        for (Pipeline pipeline : pipelines) {
+            releaseWorkers(pipeline.workers);
+        }
+    }
+
+    private MetricsReporter startReporter(List<StageMetrics> metrics) {
+        if (metricsFileName == null) {
+            return null;
+        }
+        MetricsReporter reporter = new MetricsReporter(metrics, metricsFileName, metricsFormat, logger);
+        reporter.start(metricsPeriodMs);
+        return reporter;
+    }
+
+    private void stopReporter(MetricsReporter reporter, List<StageMetrics> metrics) {
+        if (reporter != null) {
+            reporter.stop();
+        }
+        for (StageMetrics stage : metrics) {
+            logger.info(stage.summary());
+        }
+    }
+
+    private void logBufferPool() {
+        logger.info("Buffer pool: hits " + BufferPool.BYTES.Hits() + ", misses " + BufferPool.BYTES.Misses()
+                + ", evictions " + BufferPool.BYTES.Evictions());
+    }
+
+    private RC setFieldsFromConfig(Config cfg) {
         assert cfg != null;
 
         String inputFileName = cfg.GetParameter(ManagerSemanticsBase.Fields.INPUT_FILE.toString());
         String outputFileName = cfg.GetParameter(ManagerSemanticsBase.Fields.OUTPUT_FILE.toString());
+        String inputDirName = cfg.GetParameter(ManagerSemanticsBase.Fields.INPUT_DIR.toString());
+        String outputDirName = cfg.GetParameter(ManagerSemanticsBase.Fields.OUTPUT_DIR.toString());
         String pStruct = cfg.GetParameter(ManagerSemanticsBase.Fields.PIPELINE_STRUCTURE.toString());
 
-        assert (inputFileName != null && outputFileName != null && pStruct != null);
+        assert pStruct != null;
+
+        if ((inputDirName == null) != (outputDirName == null)) {
+            logger.severe("Batch mode needs both input_dir and output_dir");
+            return RC.CODE_CONFIG_SEMANTIC_ERROR;
+        }
 
         this.workerConfigMapping = getWorkerTemplates(pStruct);
         this.inputFileName = inputFileName;
         this.outputFileName = outputFileName;
+        this.inputDirName = inputDirName;
+        this.outputDirName = outputDirName;
+
+        if (inputDirName != null) {
+            for (int writer = 0; writer < writerIds.size(); ++writer) {
+                if (isSameFile(Paths.get(inputDirName), batchOutput(writer, Paths.get("")))) {
+                    logger.severe("Batch output directory is the input directory");
+                    return RC.CODE_CONFIG_SEMANTIC_ERROR;
+                }
+            }
+        }
+
+        String inputGlob = cfg.GetParameter(ManagerSemanticsBase.Fields.INPUT_GLOB.toString());
+        if (inputGlob != null) {
+            this.inputGlob = inputGlob;
+        }
+
+        if (cfg.GetParameter(ManagerSemanticsBase.Fields.BATCH_WORKERS.toString()) != null) {
+            Integer batchWorkers = cfg.GetIntParameter(ManagerSemanticsBase.Fields.BATCH_WORKERS.toString());
+            assert batchWorkers != null;
+            this.batchWorkers = batchWorkers;
+        }
+
+        this.serverSocketName = cfg.GetParameter(ManagerSemanticsBase.Fields.SERVER_SOCKET.toString());
+
+        if (cfg.GetParameter(ManagerSemanticsBase.Fields.MAX_JOBS.toString()) != null) {
+            Integer maxJobs = cfg.GetIntParameter(ManagerSemanticsBase.Fields.MAX_JOBS.toString());
+            assert maxJobs != null;
+            this.maxJobs = maxJobs;
+        }
+
+        String executionMode = cfg.GetParameter(ManagerSemanticsBase.Fields.EXECUTION_MODE.toString());
+        if (executionMode != null) {
+            this.executionMode = ManagerSemanticsBase.ExecutionMode.fromString(executionMode);
+        }
+
+        String threadBackend = cfg.GetParameter(ManagerSemanticsBase.Fields.THREAD_BACKEND.toString());
+        if (threadBackend != null) {
+            this.threadBackend = ManagerSemanticsBase.ThreadBackend.fromString(threadBackend);
+        }
+        if (this.threadBackend == ManagerSemanticsBase.ThreadBackend.VIRTUAL
+                && newVirtualThreadFactory("pipeline") == null) {
+            logger.warning("Virtual threads need Java 21, using platform threads");
+            this.threadBackend = ManagerSemanticsBase.ThreadBackend.PLATFORM;
+        }
+
+        if (cfg.GetParameter(ManagerSemanticsBase.Fields.QUEUE_CAPACITY.toString()) != null) {
+            Integer queueCapacity = cfg.GetIntParameter(ManagerSemanticsBase.Fields.QUEUE_CAPACITY.toString());
+            assert queueCapacity != null;
+            this.queueCapacity = queueCapacity;
+        }
+
+        if (cfg.GetParameter(ManagerSemanticsBase.Fields.PARALLELISM.toString()) != null) {
+            Integer parallelism = cfg.GetIntParameter(ManagerSemanticsBase.Fields.PARALLELISM.toString());
+            assert parallelism != null;
+            this.parallelism = parallelism;
+        }
+
+        if (cfg.GetParameter(ManagerSemanticsBase.Fields.PARTITIONS.toString()) != null) {
+            Integer partitions = cfg.GetIntParameter(ManagerSemanticsBase.Fields.PARTITIONS.toString());
+            assert partitions != null;
+            this.partitions = partitions;
+        }
+
+        this.metricsFileName = cfg.GetParameter(ManagerSemanticsBase.Fields.METRICS_FILE.toString());
+
+        String metricsFormat = cfg.GetParameter(ManagerSemanticsBase.Fields.METRICS_FORMAT.toString());
+        if (metricsFormat != null) {
+            this.metricsFormat = MetricsFormat.fromString(metricsFormat);
+        }
+
+        if (cfg.GetParameter(ManagerSemanticsBase.Fields.METRICS_PERIOD.toString()) != null) {
+            Integer metricsPeriodMs = cfg.GetIntParameter(ManagerSemanticsBase.Fields.METRICS_PERIOD.toString());
+            assert metricsPeriodMs != null;
+            this.metricsPeriodMs = metricsPeriodMs;
+        }
+        return RC.CODE_SUCCESS;
     }
 
     private ConfigMapping[] getWorkerTemplates(String pStruct) {
         assert pStruct != null;
 
-        String[] workerStrings = pStruct.split(ManagerSemanticsBase.workersDelimiter());
+        ManagerSemanticsBase.Element[] elements = ManagerSemanticsBase.parsePipeline(pStruct, logger);
+        assert elements != null;
 
-        ConfigMapping[] mapping = new ConfigMapping[workerStrings.length];
+        ConfigMapping[] mapping = new ConfigMapping[elements.length];
 
-        for (int k = 0; k < workerStrings.length; ++k) {
-            String[] workerParams = workerStrings[k].split(ManagerSemanticsBase.workersInnerDelimiter());
-
-            assert workerParams.length == 2;
+        for (int k = 0; k < elements.length; ++k) {
+            ManagerSemanticsBase.Element element = elements[k];
+            mapping[k] = new ConfigMapping(element.name, element.source, element.worker, element.configFile);
+        }
 
-            for (int i = 0; i < workerParams.length; ++i) {
-                workerParams[i] = workerParams[i].trim();
+        boolean[] isWriter = ManagerSemanticsBase.findWriters(elements);
+        writerIds.clear();
+        for (int k = 0; k < elements.length; ++k) {
+            if (isWriter[k]) {
+                writerIds.add(k);
             }
-
-            mapping[k] = new ConfigMapping(workerParams[0], workerParams[1]);
         }
 
         return mapping;
@@ -292,25 +1283,146 @@ public class PipelineManager implements IConfigurable {
         }
     }
 
-    private RC createWorkers(FileInputStream inputStream, FileOutputStream outputStream, IPipelineStep[] workers) {
-        assert inputStream != null;
-        assert outputStream != null;
-
+    private RC createWorkers(IPipelineStep[] workers) {
         for (int workerId = 0; workerId < workerConfigMapping.length; ++workerId) {
-            IPipelineStep worker = createWorker(workerConfigMapping[workerId].worker);
+            boolean isInner = workerId > 0 && !writerIds.contains(workerId);
+            int replicaCount = isInner ? parallelism : 1;
+
+            IPipelineStep[] replicas = new IPipelineStep[replicaCount];
+            for (int r = 0; r < replicaCount; ++r) {
+                IPipelineStep worker = createWorker(workerConfigMapping[workerId].worker);
+                if (worker == null) {
+                    return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+                }
+
+                RC rc = ((IConfigurable)worker).setConfig(workerConfigMapping[workerId].configFile);
+                if (rc != RC.CODE_SUCCESS) {
+                    return rc;
+                }
+                replicas[r] = worker;
+
+                if (r == 0 && worker instanceof IStatefulStep && ((IStatefulStep) worker).isStateful()) {
+                    if (replicaCount > 1) {
+                        logger.warning(workerConfigMapping[workerId].worker + " is stateful and runs without replicas");
+                    }
+                    replicaCount = 1;
+                    replicas = new IPipelineStep[] {worker};
+                }
+            }
 
-            RC rc = ((IConfigurable)worker).setConfig(workerConfigMapping[workerId].configFile);
-            if (rc != RC.CODE_SUCCESS) {
-                return rc;
+            if (replicaCount > 1 && replicas[0] instanceof IExecutor) {
+                IExecutor[] executors = new IExecutor[replicaCount];
+                for (int r = 0; r < replicaCount; ++r) {
+                    executors[r] = (IExecutor) replicas[r];
+                }
+                workers[workerId] = new ParallelStage(executors, logger);
+                logger.info(workerConfigMapping[workerId].worker + " runs as " + replicaCount + " replicas");
+            }
+            else {
+                workers[workerId] = replicas[0];
+            }
+        }
+
+        return RC.CODE_SUCCESS;
+    }
+
+    private void releaseWorkers(IPipelineStep[] workers) {
+        for (IPipelineStep worker : workers) {
+            releaseWorker(worker);
+        }
+        BufferPool.DIRECT.Purge();
+    }
+
+    private void releaseWorker(IPipelineStep worker) {
+        if (worker instanceof ParallelStage) {
+            ((ParallelStage) worker).shutdown();
+            for (IExecutor replica : ((ParallelStage) worker).replicas()) {
+                releaseWorker(replica);
             }
+        }
+        else if (worker instanceof Closeable) {
+            closeStream((Closeable) worker);
+        }
+    }
 
-            workers[workerId] = worker;
+    // A pure byte substitution that is the only consumer of another one is composed into it and dropped.
+    // positions receives the index of every configured step in the result, -1 for the dropped ones,
+    // and sources are redirected to the steps that remain.
+    private IPipelineStep[] fuseSubstitutions(IPipelineStep[] workers, int[] sources, int[] positions,
+                                              List<String> stageNames) {
+        int[] consumerCount = new int[workers.length];
+        for (int source : sources) {
+            if (source >= 0) {
+                ++consumerCount[source];
+            }
         }
 
-        ((IReader)workers[0]).setInputStream(inputStream);
-        ((IWriter)workers[workers.length - 1]).setOutputStream(outputStream);
+        String[] names = new String[workers.length];
+        int[] fusedInto = new int[workers.length];
+        byte[][] mappings = new byte[workers.length][];
+        boolean[] isFused = new boolean[workers.length];
+        for (int workerId = 0; workerId < workers.length; ++workerId) {
+            names[workerId] = stageName(workerId);
+            fusedInto[workerId] = workerId;
+        }
 
-        return RC.CODE_SUCCESS;
+        for (int workerId = 0; workerId < workers.length; ++workerId) {
+            int source = (sources[workerId] < 0) ? -1 : fusedInto[sources[workerId]];
+            sources[workerId] = source;
+            if (source < 0 || consumerCount[source] != 1) {
+                continue;
+            }
+
+            if (mappings[source] == null) {
+                mappings[source] = byteMapping(workers[source]);
+            }
+            byte[] next = (mappings[source] == null) ? null : byteMapping(workers[workerId]);
+            if (next == null) {
+                continue;
+            }
+
+            byte[] mapping = mappings[source];
+            for (int b = 0; b < mapping.length; ++b) {
+                mapping[b] = next[mapping[b] & 0xFF];
+            }
+            names[source] += "+" + names[workerId];
+            consumerCount[source] = consumerCount[workerId];
+            fusedInto[workerId] = source;
+            isFused[source] = true;
+        }
+
+        for (int workerId = 0; workerId < workers.length; ++workerId) {
+            if (isFused[workerId] && ((IByteSubstitution) workers[workerId]).setByteMapping(mappings[workerId]) != RC.CODE_SUCCESS) {
+                releaseWorkers(workers);
+                return null;
+            }
+        }
+
+        List<IPipelineStep> fused = new ArrayList<>();
+        for (int workerId = 0; workerId < workers.length; ++workerId) {
+            if (fusedInto[workerId] != workerId) {
+                positions[workerId] = -1;
+                releaseWorker(workers[workerId]);
+                continue;
+            }
+
+            String name = names[workerId];
+            if (workers[workerId] instanceof ParallelStage) {
+                name += " x" + parallelism;
+            }
+            positions[workerId] = fused.size();
+            fused.add(workers[workerId]);
+            stageNames.add(name);
+        }
+
+        return fused.toArray(new IPipelineStep[0]);
+    }
+
+    private byte[] byteMapping(IPipelineStep worker) {
+        if (!(worker instanceof IByteSubstitution)) {
+            return null;
+        }
+        return ((IByteSubstitution) worker).getByteMapping();
     }
 
     private IPipelineStep createWorker(String className) {
@@ -333,18 +1445,141 @@ public class PipelineManager implements IConfigurable {
         return step;
     }
 
-    private RC putWorkersInChain(IPipelineStep[] workers) {
+    private IPipelineStep meter(IPipelineStep step, String name, List<StageMetrics> metrics, int index,
+                                StageMetrics previous) {
+        if (index < metrics.size()) {
+            return new MeteredStage(step, metrics.get(index));
+        }
+        StageMetrics stageMetrics = new StageMetrics(name, metrics.size(), previous, step instanceof IProducer);
+        metrics.add(stageMetrics);
+        return new MeteredStage(step, stageMetrics);
+    }
+
+    private String stageName(int workerId) {
+        String name = workerConfigMapping[workerId].worker;
+        name = name.substring(name.lastIndexOf('.') + 1);
+        if (workerConfigMapping[workerId].name != null) {
+            name += "(" + workerConfigMapping[workerId].name + ")";
+        }
+        return name;
+    }
+
+    // links[c] is the queue in front of workers[c] in the threaded mode, null otherwise.
+    // A worker with several consumers feeds them through a FanOutStage.
+    private RC putWorkersInGraph(IPipelineStep[] workers, IPipelineStep[] links, List<List<Integer>> consumers) {
         if (workers == null)
             return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
 
-        for(int i = 0; i < workers.length - 1; i++) {
-            RC rc = workers[i].setConsumer((IConsumer) workers[i + 1]);
-            if (rc != RC.CODE_SUCCESS)
-                return  rc;
-            rc = workers[i + 1].setProducer((IProducer) workers[i]);
+        for (int i = 0; i < workers.length; ++i) {
+            List<Integer> next = consumers.get(i);
+            IPipelineStep producer = workers[i];
+            RC rc = RC.CODE_SUCCESS;
+            if (next.size() > 1) {
+                FanOutStage fanOut = new FanOutStage(logger);
+                rc = link(producer, fanOut);
+                producer = fanOut;
+            }
+
+            for (int k = 0; rc == RC.CODE_SUCCESS && k < next.size(); ++k) {
+                int consumer = next.get(k);
+                if (links[consumer] == null) {
+                    rc = link(producer, workers[consumer]);
+                }
+                else {
+                    rc = link(producer, links[consumer]);
+                    if (rc == RC.CODE_SUCCESS)
+                        rc = link(links[consumer], workers[consumer]);
+                }
+            }
             if (rc != RC.CODE_SUCCESS)
                 return rc;
         }
         return  RC.CODE_SUCCESS;
     }
-}
\ No newline at end of file
+
+    private RC link(IPipelineStep producer, IPipelineStep consumer) {
+        RC rc = producer.setConsumer((IConsumer) consumer);
+        if (rc != RC.CODE_SUCCESS)
+            return rc;
+        return consumer.setProducer((IProducer) producer);
+    }
+
+    private RC runThreaded(IPipelineStep[] workers, StageLink[] links) {
+        ExecutorService pool = newPool(workers.length, "pipeline-stage");
+        AtomicReference<RC> failure = new AtomicReference<>();
+        List<Future<RC>> stages = new ArrayList<>();
+
+        stages.add(pool.submit(() -> runStage(((IConsumer)workers[0])::execute, links, failure)));
+        for (StageLink link : links) {
+            stages.add(pool.submit(() -> runStage(link::drain, links, failure)));
+        }
+        pool.shutdown();
+
+        for (Future<RC> stage : stages) {
+            try {
+                stage.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelLinks(links);
+                failure.compareAndSet(null, RC.CODE_FAILED_PIPELINE_CONSTRUCTION);
+            } catch (ExecutionException e) {
+                logger.severe("Pipeline stage crashed: " + e.getCause());
+                cancelLinks(links);
+                failure.compareAndSet(null, RC.CODE_FAILED_PIPELINE_CONSTRUCTION);
+            }
+        }
+
+        RC rc = failure.get();
+        return rc == null ? RC.CODE_SUCCESS : rc;
+    }
+
+    private RC runStage(StageTask task, StageLink[] links, AtomicReference<RC> failure) {
+        RC rc = task.run();
+        if (rc != RC.CODE_SUCCESS && failure.compareAndSet(null, rc)) {
+            cancelLinks(links);
+        }
+        return rc;
+    }
+
+    private void cancelLinks(StageLink[] links) {
+        for (StageLink link : links) {
+            link.cancel();
+        }
+    }
+
+    // With virtual threads every task gets its own thread and blocking between stages costs no carrier,
+    // platform threads are bounded by the pool size.
+    private ExecutorService newPool(int platformThreads, String name) {
+        if (threadBackend == ManagerSemanticsBase.ThreadBackend.VIRTUAL) {
+            return newThreadPerTaskExecutor(newVirtualThreadFactory(name));
+        }
+        return Executors.newFixedThreadPool(platformThreads);
+    }
+
+    // Executors.newThreadPerTaskExecutor() comes with virtual threads in Java 21, looked up the same way.
+    private static ExecutorService newThreadPerTaskExecutor(ThreadFactory factory) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(factory);
+        }
+    }
+
+    // Thread.ofVirtual() is there since Java 21, the language level of the project is older
+    // so it is looked up reflectively. Null when the runtime has no virtual threads.
+    private static ThreadFactory newVirtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private interface StageTask {
+        RC run();
+    }
+}
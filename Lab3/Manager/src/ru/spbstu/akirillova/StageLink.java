@@ -0,0 +1,136 @@
+package ru.spbstu.akirillova;
+
+import ru.spbstu.akirillova.utils.IReusableStep;
+import ru.spbstu.pipeline.*;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+class StageLink implements IConsumer, IProducer, IReusableStep {
+
+    private static final Object END = new Object();
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    private final BlockingQueue<Object> queue;
+
+    private IProducer producer;
+    private IConsumer consumer;
+
+    private IMediator upstreamMediator;
+    private Object current;
+
+    private volatile boolean isCancelled;
+
+    private final Logger logger;
+
+    class LinkMediator implements IMediator {
+        @Override
+        public Object getData() {
+            return current;
+        }
+    }
+
+    StageLink(int capacity, Logger logger) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.logger = logger;
+        this.isCancelled = false;
+    }
+
+    @Override
+    public RC setProducer(IProducer newProducer) {
+        if (newProducer == null) {
+            logger.warning("Invalid producer");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+        producer = newProducer;
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public RC setConsumer(IConsumer newConsumer) {
+        if (newConsumer == null) {
+            logger.warning("Invalid consumer");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+        consumer = newConsumer;
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public TYPE[] getOutputTypes() {
+        return producer.getOutputTypes();
+    }
+
+    @Override
+    public IMediator getMediator(TYPE type) {
+        upstreamMediator = producer.getMediator(type);
+        if (upstreamMediator == null) {
+            logger.warning("No such mediator");
+            return null;
+        }
+        return new LinkMediator();
+    }
+
+    public void cancel() {
+        isCancelled = true;
+    }
+
+    @Override
+    public RC reset() {
+        queue.clear();
+        current = null;
+        isCancelled = false;
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public RC execute() {
+        Object data = upstreamMediator.getData();
+        Object element = (data == null) ? END : data;
+
+        try {
+            while (!queue.offer(element, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                if (isCancelled) {
+                    return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    public RC drain() {
+        while (true) {
+            Object element;
+            try {
+                element = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+            }
+
+            if (element == null) {
+                if (isCancelled) {
+                    return RC.CODE_FAILED_PIPELINE_CONSTRUCTION;
+                }
+                continue;
+            }
+
+            current = (element == END) ? null : element;
+            RC rc = consumer.execute();
+            current = null;
+
+            if (rc != RC.CODE_SUCCESS) {
+                logger.severe("error while executing link consumer");
+                return rc;
+            }
+            if (element == END) {
+                return RC.CODE_SUCCESS;
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package ru.spbstu.akirillova;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+class StageMetrics {
+
+    private static final int BUCKETS = 64;
+
+    private final String name;
+    private final int index;
+    private final StageMetrics previous;
+    private final boolean isProducer;
+
+    private final LongAdder executeCalls = new LongAdder();
+    private final LongAdder selfNanos = new LongAdder();
+    private final LongAdder chunksOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder mediatorNanos = new LongAdder();
+    private final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+
+    StageMetrics(String name, int index, StageMetrics previous, boolean isProducer) {
+        this.name = name;
+        this.index = index;
+        this.previous = previous;
+        this.isProducer = isProducer;
+    }
+
+    void addExecute(long nanos) {
+        executeCalls.increment();
+        selfNanos.add(nanos);
+        latency.incrementAndGet(bucket(nanos));
+    }
+
+    void addChunk(long bytes) {
+        chunksOut.increment();
+        bytesOut.add(bytes);
+    }
+
+    void addMediatorTime(long nanos) {
+        mediatorNanos.add(nanos);
+    }
+
+    String name() {
+        return name;
+    }
+
+    int index() {
+        return index;
+    }
+
+    boolean isProducer() {
+        return isProducer;
+    }
+
+    long executeCalls() {
+        return executeCalls.sum();
+    }
+
+    long selfNanos() {
+        return selfNanos.sum();
+    }
+
+    long chunksOut() {
+        return chunksOut.sum();
+    }
+
+    long bytesOut() {
+        return bytesOut.sum();
+    }
+
+    long bytesIn() {
+        return previous == null ? bytesOut() : previous.bytesOut();
+    }
+
+    long mediatorNanos() {
+        return mediatorNanos.sum();
+    }
+
+    long[] latencyBuckets() {
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            buckets[i] = latency.get(i);
+        }
+        return buckets;
+    }
+
+    long latencyPercentile(double p) {
+        long[] buckets = latencyBuckets();
+        long total = 0;
+        for (long b : buckets) {
+            total += b;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return bucketUpperBound(i);
+            }
+        }
+        return bucketUpperBound(BUCKETS - 1);
+    }
+
+    String summary() {
+        double selfMs = selfNanos() / 1e6;
+        double throughput = selfNanos() == 0 ? 0 : bytesIn() * 1e3 / selfNanos();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "#%d %s: calls %d, self %.1f ms, in %d B",
+                index, name, executeCalls(), selfMs, bytesIn()));
+        if (isProducer) {
+            sb.append(String.format(Locale.ROOT, ", out %d B in %d chunks, mediator %.1f ms",
+                    bytesOut(), chunksOut(), mediatorNanos() / 1e6));
+        }
+        sb.append(String.format(Locale.ROOT, ", %.1f MB/s, p50 %d us, p99 %d us",
+                throughput, latencyPercentile(0.5) / 1000, latencyPercentile(0.99) / 1000));
+        return sb.toString();
+    }
+
+    static long bucketUpperBound(int bucket) {
+        return bucket >= 62 ? Long.MAX_VALUE : (1L << (bucket + 1)) - 1;
+    }
+
+    private static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+}
@@ -0,0 +1,14 @@
+package ru.spbstu.akirillova.utils;
+
+import java.nio.ByteBuffer;
+
+public interface IBufferMediator {
+    /**
+     * Returns a read-only view of the producer's current chunk, or null at the end of the stream.
+     * The view stays valid only until release() is called, which must happen before the consumer's
+     * execute() returns.
+     */
+    ByteBuffer getBuffer();
+
+    void release();
+}
@@ -0,0 +1,11 @@
+package ru.spbstu.akirillova.utils;
+
+import ru.spbstu.pipeline.RC;
+
+public interface IPositionalWriter {
+    /**
+     * Makes the writer continue at the given offset of its output stream instead of
+     * the current one, must be called after the stream is set.
+     */
+    RC setPosition(long position);
+}
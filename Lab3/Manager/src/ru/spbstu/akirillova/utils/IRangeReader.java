@@ -0,0 +1,11 @@
+package ru.spbstu.akirillova.utils;
+
+import ru.spbstu.pipeline.RC;
+
+public interface IRangeReader {
+    /**
+     * Limits the reader to length bytes of its input stream starting at position,
+     * must be called after the stream is set.
+     */
+    RC setRange(long position, long length);
+}
@@ -0,0 +1,11 @@
+package ru.spbstu.akirillova.utils;
+
+import ru.spbstu.pipeline.RC;
+
+public interface IReusableStep {
+    /**
+     * Drops the per-stream state left by the previous run, so a configured step
+     * can be given the next stream without being constructed again.
+     */
+    RC reset();
+}
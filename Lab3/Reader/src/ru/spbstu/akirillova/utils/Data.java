@@ -1,45 +1,166 @@
 package ru.spbstu.akirillova.utils;
 
+import java.nio.ByteBuffer;
+
 public class Data {
-    private byte[] array;
+    // Ring buffer: capacity is a power of two, elements start at head and may wrap around.
+    private ByteBuffer buffer;
+    private int head;
     private int numOfElements;
 
+    private final Storage storage;
+
+    public Data() {
+        this(Storage.HEAP);
+    }
+
+    public Data(Storage storage) {
+        this.storage = storage;
+    }
+
+    public Data(int capacity) {
+        this(Storage.HEAP);
+        buffer = Allocate(CeilPowerOfTwo(capacity));
+    }
+
+    private static int CeilPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    private ByteBuffer Allocate(int size) {
+        if (storage == Storage.DIRECT)
+            return BufferPool.DIRECT.Borrow(size);
+        return ByteBuffer.wrap(BufferPool.BYTES.Borrow(size));
+    }
+
+    private void Deallocate(ByteBuffer buf) {
+        if (storage == Storage.DIRECT) {
+            buf.clear();
+            BufferPool.DIRECT.Release(buf);
+        }
+        else {
+            BufferPool.BYTES.Release(buf.array());
+        }
+    }
+
     private void Resize(int newSize) {
-        byte[] arr = new byte[Math.max(newSize, 2 * numOfElements)];
-        if (array != null)
-            System.arraycopy(array, 0, arr, 0, numOfElements);
-        else
-            array = arr;
+        ByteBuffer buf = Allocate(CeilPowerOfTwo(Math.max(newSize, 2 * numOfElements)));
+        if (buffer != null) {
+            for (ByteBuffer segment : Segments(0, numOfElements))
+                buf.put(segment);
+            buf.clear();
+            Deallocate(buffer);
+        }
+        buffer = buf;
+        head = 0;
+    }
+
+    private void Reserve(int additionDataSize) {
+        if (buffer == null || buffer.capacity() - numOfElements < additionDataSize)
+            Resize(numOfElements + additionDataSize);
+    }
+
+    private void CopyOut(int offset, byte[] dst, int dstOffset, int length) {
+        if (length == 0)
+            return;
+        int start = (head + offset) & (buffer.capacity() - 1);
+        int first = Math.min(length, buffer.capacity() - start);
+        buffer.get(start, dst, dstOffset, first);
+        buffer.get(0, dst, dstOffset + first, length - first);
+    }
+
+    private byte Get(int offset) {
+        return buffer.get((head + offset) & (buffer.capacity() - 1));
+    }
+
+    private ByteBuffer Slice(int start, int length) {
+        return buffer.duplicate().position(start).limit(start + length);
+    }
+
+    public Storage GetStorage() {
+        return storage;
     }
 
     public void Clear() {
         numOfElements = 0;
+        head = 0;
+    }
+
+    public void Free() {
+        Clear();
+        if (buffer != null) {
+            Deallocate(buffer);
+            buffer = null;
+        }
     }
 
     public boolean IsEmpty() {
         return numOfElements == 0;
     }
 
+    public int Size() {
+        return numOfElements;
+    }
+
+    public int Capacity() {
+        return buffer == null ? 0 : buffer.capacity();
+    }
+
+    public ByteBuffer View() {
+        if (buffer == null)
+            return ByteBuffer.allocate(0);
+        return Slice(head, Math.min(numOfElements, buffer.capacity() - head));
+    }
+
+    public ByteBuffer[] Segments(int offset, int length) {
+        if (buffer == null || length == 0)
+            return new ByteBuffer[0];
+        int start = (head + offset) & (buffer.capacity() - 1);
+        int first = Math.min(length, buffer.capacity() - start);
+        if (first == length)
+            return new ByteBuffer[] {Slice(start, length)};
+        return new ByteBuffer[] {Slice(start, first), Slice(0, length - first)};
+    }
+
+    public int Peek(byte[] dst, int dstOffset, int length) {
+        int n = Math.min(length, numOfElements);
+        if (n > 0)
+            CopyOut(0, dst, dstOffset, n);
+        return n;
+    }
+
+    public int Read(byte[] dst, int dstOffset, int length) {
+        return Skip(Peek(dst, dstOffset, length));
+    }
+
+    public int Skip(int length) {
+        int n = Math.min(length, numOfElements);
+        numOfElements -= n;
+        head = (numOfElements == 0) ? 0 : (head + n) & (buffer.capacity() - 1);
+        return n;
+    }
+
     public byte[] ExtractBytes() {
-        byte[] arr = new byte[numOfElements];
-        System.arraycopy(array, 0, arr, 0, numOfElements);
-        numOfElements = 0;
+        byte[] arr = BufferPool.BYTES.Borrow(numOfElements);
+        if (numOfElements > 0)
+            CopyOut(0, arr, 0, numOfElements);
+        Clear();
         return arr;
     }
 
     public short[] ExtractShorts() {
-        short[] arr = new short[(numOfElements % 2 == 0) ? numOfElements / 2 : numOfElements / 2 + 1];
+        short[] arr = BufferPool.SHORTS.Borrow((numOfElements % 2 == 0) ? numOfElements / 2 : numOfElements / 2 + 1);
         for (int i = 0; i < numOfElements; i += 2)
-            arr[i / 2] = (short) ((short)array[i] << 8 + ((numOfElements % 2 == 0) ? (short)array[i + 1] : 0));
-        numOfElements = 0;
+            arr[i / 2] = (short) ((short)Get(i) << 8 + ((numOfElements % 2 == 0) ? (short)Get(i + 1) : 0));
+        Clear();
         return arr;
     }
 
     public char[] ExtractChars() {
-        char[] arr = new char[numOfElements];
+        char[] arr = BufferPool.CHARS.Borrow(numOfElements);
         for (int i = 0; i < numOfElements; i++)
-            arr[i] = (char)array[i];
-        numOfElements = 0;
+            arr[i] = (char)Get(i);
+        Clear();
         return arr;
     }
 
@@ -47,18 +168,62 @@ public class Data {
         return PushBack(additionalData, additionalData.length);
     }
     public boolean PushBack(byte[] additionalData, int additionDataSize) {
+        return PushBack(additionalData, 0, additionDataSize);
+    }
+    public boolean PushBack(byte[] additionalData, int offset, int additionDataSize) {
         if (additionalData == null)
             return false;
 
-        if (array == null)
-            Resize(numOfElements + additionDataSize);
-        else if (array.length - numOfElements < additionDataSize)
-            Resize(numOfElements + additionDataSize);
+        Reserve(additionDataSize);
 
-        if (array != null)
-            System.arraycopy(additionalData, 0, array, numOfElements, additionDataSize);
+        int tail = (head + numOfElements) & (buffer.capacity() - 1);
+        int first = Math.min(additionDataSize, buffer.capacity() - tail);
+        buffer.put(tail, additionalData, offset, first);
+        buffer.put(0, additionalData, offset + first, additionDataSize - first);
         numOfElements += additionDataSize;
 
         return true;
     }
+
+    public boolean PushBack(ByteBuffer additionalData, int additionDataSize) {
+        if (additionalData == null || additionalData.remaining() < additionDataSize)
+            return false;
+
+        Reserve(additionDataSize);
+
+        int tail = (head + numOfElements) & (buffer.capacity() - 1);
+        int first = Math.min(additionDataSize, buffer.capacity() - tail);
+        int position = additionalData.position();
+        Slice(tail, first).put(additionalData.duplicate().limit(position + first));
+        Slice(0, additionDataSize - first).put(additionalData.duplicate().position(position + first)
+                .limit(position + additionDataSize));
+        additionalData.position(position + additionDataSize);
+        numOfElements += additionDataSize;
+
+        return true;
+    }
+
+    public enum Storage {
+        HEAP("heap"),
+        DIRECT("direct");
+
+        private final String name;
+
+        Storage(String name) {
+            this.name = name;
+        }
+
+        public static Storage fromString(String name) {
+            for (Storage storage : values()) {
+                if (storage.name.equals(name)) {
+                    return storage;
+                }
+            }
+            return null;
+        }
+
+        public String toString() {
+            return this.name;
+        }
+    }
 }
@@ -1,13 +1,24 @@
 package ru.spbstu.akirillova.workers;
 
+import ru.spbstu.akirillova.utils.BufferPool;
 import ru.spbstu.akirillova.utils.Data;
+import ru.spbstu.akirillova.utils.IBufferMediator;
+import ru.spbstu.akirillova.utils.IBufferProducer;
+import ru.spbstu.akirillova.utils.IRangeReader;
+import ru.spbstu.akirillova.utils.IReusableStep;
 import ru.spbstu.pipeline.*;
 import ru.spbstu.akirillova.config.SemanticsBase;
 import ru.spbstu.akirillova.config.Config;
 import ru.spbstu.akirillova.utils.PipelineBaseGrammar;
 
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Logger;
 
 class ReaderGrammar extends PipelineBaseGrammar {
@@ -40,6 +51,26 @@ class ReaderSemantics extends SemanticsBase {
         if (fieldName.equals(Fields.BUFFER_SIZE.toString())) {
             return SemanticsBase.IsPositiveInt(fieldValue);
         }
+        else if (fieldName.equals(Fields.READ_MODE.toString())) {
+            if (ReadMode.fromString(fieldValue) != null) {
+                return true;
+            }
+            GetLogger().warning("Unknown read mode " + fieldValue);
+            return false;
+        }
+        else if (fieldName.equals(Fields.MAP_WINDOW_SIZE.toString())) {
+            return SemanticsBase.IsPositiveInt(fieldValue);
+        }
+        else if (fieldName.equals(Fields.READ_AHEAD.toString())) {
+            return SemanticsBase.IsPositiveInt(fieldValue);
+        }
+        else if (fieldName.equals(Fields.STORAGE.toString())) {
+            if (Data.Storage.fromString(fieldValue) != null) {
+                return true;
+            }
+            GetLogger().warning("Unknown storage " + fieldValue);
+            return false;
+        }
         else {
             GetLogger().warning("Unknown field " + fieldName);
         }
@@ -47,7 +78,11 @@ class ReaderSemantics extends SemanticsBase {
     }
 
     public enum Fields {
-        BUFFER_SIZE("buffer_size");
+        BUFFER_SIZE("buffer_size"),
+        READ_MODE("read_mode"),
+        MAP_WINDOW_SIZE("map_window_size"),
+        READ_AHEAD("read_ahead"),
+        STORAGE("storage");
 
         private final String name;
 
@@ -59,10 +94,36 @@ class ReaderSemantics extends SemanticsBase {
             return this.name;
         }
     }
+
+    public enum ReadMode {
+        STREAM("stream"),
+        MMAP("mmap");
+
+        private final String name;
+
+        ReadMode(String name) {
+            this.name = name;
+        }
+
+        public static ReadMode fromString(String name) {
+            for (ReadMode mode : values()) {
+                if (mode.name.equals(name)) {
+                    return mode;
+                }
+            }
+            return null;
+        }
+
+        public String toString() {
+            return this.name;
+        }
+    }
 }
 
 
-public class FileReader implements IReader {
+public class FileReader implements IReader, IBufferProducer, IRangeReader, IReusableStep, Closeable {
+    private static final int DEFAULT_MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+
     private FileInputStream stream;
 
     private IConsumer consumer;
@@ -72,8 +133,18 @@ public class FileReader implements IReader {
 
     private int bufferSize;
 
+    private ReaderSemantics.ReadMode readMode = ReaderSemantics.ReadMode.STREAM;
+    private int mapWindowSize = DEFAULT_MAP_WINDOW_SIZE;
+    private int readAhead = 0;
+
     private Data outData;
 
+    private ByteBuffer mappedChunk;
+    private boolean isBufferConsumer;
+
+    // bytes left of the range given by setRange, -1 for the whole stream
+    private long rangeRemaining = -1;
+
     private final TYPE[] outTypes = {TYPE.BYTE, TYPE.CHAR, TYPE.SHORT};
 
     private boolean isEnd;
@@ -111,6 +182,39 @@ public class FileReader implements IReader {
         }
     }
 
+    static class Portion {
+        final byte[] buffer;
+        int size;
+
+        Portion(byte[] buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    class BufferMediator implements IBufferMediator {
+        private int lent;
+
+        @Override
+        public ByteBuffer getBuffer() {
+            if (mappedChunk != null) {
+                return mappedChunk.asReadOnlyBuffer();
+            }
+            if (outData.IsEmpty() && isEnd) {
+                return null;
+            }
+            ByteBuffer view = outData.View();
+            lent = view.remaining();
+            return view.asReadOnlyBuffer();
+        }
+
+        @Override
+        public void release() {
+            mappedChunk = null;
+            outData.Skip(lent);
+            lent = 0;
+        }
+    }
+
     public FileReader(Logger logger) {
         this.logger = logger;
         this.isEnd = false;
@@ -137,6 +241,12 @@ public class FileReader implements IReader {
         }
     }
 
+    @Override
+    public IBufferMediator getBufferMediator() {
+        isBufferConsumer = true;
+        return new BufferMediator();
+    }
+
     @Override
     public RC setInputStream(FileInputStream fileInputStream) {
         if (fileInputStream == null) {
@@ -147,6 +257,26 @@ public class FileReader implements IReader {
         return RC.CODE_SUCCESS;
     }
 
+    @Override
+    public RC setRange(long position, long length) {
+        if (stream == null) {
+            logger.warning("Invalid input stream");
+            return RC.CODE_INVALID_INPUT_STREAM;
+        }
+        if (position < 0 || length < 0) {
+            logger.warning("Invalid input range");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+        try {
+            stream.getChannel().position(position);
+        } catch (IOException ex) {
+            logger.severe("IOexception while seeking input");
+            return RC.CODE_FAILED_TO_READ;
+        }
+        rangeRemaining = length;
+        return RC.CODE_SUCCESS;
+    }
+
     @Override
     public RC setConsumer(IConsumer newConsumer) {
         if (newConsumer == null) {
@@ -178,19 +308,61 @@ public class FileReader implements IReader {
 
         this.bufferSize = bufferSize;
 
+        String readMode = cfg.GetParameter(ReaderSemantics.Fields.READ_MODE.toString());
+        if (readMode != null) {
+            this.readMode = ReaderSemantics.ReadMode.fromString(readMode);
+        }
+
+        if (cfg.GetParameter(ReaderSemantics.Fields.MAP_WINDOW_SIZE.toString()) != null) {
+            Integer mapWindowSize = cfg.GetIntParameter(ReaderSemantics.Fields.MAP_WINDOW_SIZE.toString());
+            assert mapWindowSize != null;
+            this.mapWindowSize = mapWindowSize;
+        }
+
+        if (cfg.GetParameter(ReaderSemantics.Fields.READ_AHEAD.toString()) != null) {
+            Integer readAhead = cfg.GetIntParameter(ReaderSemantics.Fields.READ_AHEAD.toString());
+            assert readAhead != null;
+            this.readAhead = readAhead;
+
+            if (this.readMode == ReaderSemantics.ReadMode.MMAP) {
+                logger.warning("read_ahead is ignored in mmap read mode");
+            }
+        }
+
+        String storage = cfg.GetParameter(ReaderSemantics.Fields.STORAGE.toString());
+        if (storage != null) {
+            this.outData = new Data(Data.Storage.fromString(storage));
+        }
+
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public RC reset() {
+        stream = null;
+        mappedChunk = null;
+        outData.Clear();
+        isEnd = false;
+        rangeRemaining = -1;
         return RC.CODE_SUCCESS;
     }
 
     private int readBytePortion(byte[] buffer, int bufferSize) {
+        int portion = rangeRemaining < 0 ? bufferSize : (int) Math.min(bufferSize, rangeRemaining);
+        if (portion == 0)
+            return 0;
+
         int bytesRead;
         try {
-            bytesRead = stream.read(buffer, 0, bufferSize);
+            bytesRead = stream.read(buffer, 0, portion);
         } catch (IOException ex) {
             logger.severe("IOexception while reading");
             return -1;
         }
         if (bytesRead < 0)
             return 0;
+        if (rangeRemaining > 0)
+            rangeRemaining -= bytesRead;
         return bytesRead;
     }
 
@@ -201,9 +373,21 @@ public class FileReader implements IReader {
             return RC.CODE_INVALID_INPUT_STREAM;
         }
 
-        byte[] buffer = new byte[bufferSize];
+        if (readMode == ReaderSemantics.ReadMode.MMAP) {
+            return executeMapped();
+        }
 
+        if (readAhead > 0) {
+            return executeReadAhead();
+        }
 
+        byte[] buffer = BufferPool.BYTES.Borrow(bufferSize);
+        RC rc = executeStream(buffer);
+        BufferPool.BYTES.Release(buffer);
+        return rc;
+    }
+
+    private RC executeStream(byte[] buffer) {
         while(!isEnd) {
             int bytesRead = readBytePortion(buffer, bufferSize);
             if (bytesRead < 0) {
@@ -225,7 +409,142 @@ public class FileReader implements IReader {
             }
         }
 
-        return RC.CODE_SUCCESS;
+        return finish();
     }
-}
 
+    private RC executeReadAhead() {
+        BlockingQueue<Portion> free = new ArrayBlockingQueue<>(readAhead);
+        BlockingQueue<Portion> filled = new ArrayBlockingQueue<>(readAhead);
+        for (int i = 0; i < readAhead; ++i) {
+            free.add(new Portion(BufferPool.BYTES.Borrow(bufferSize)));
+        }
+
+        Thread prefetcher = new Thread(() -> prefetch(free, filled), "reader-read-ahead");
+        prefetcher.setDaemon(true);
+        prefetcher.start();
+
+        RC rc = drainPortions(free, filled);
+
+        prefetcher.interrupt();
+        try {
+            prefetcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Portion portion : free) {
+            BufferPool.BYTES.Release(portion.buffer);
+        }
+        for (Portion portion : filled) {
+            BufferPool.BYTES.Release(portion.buffer);
+        }
+        return rc;
+    }
+
+    private void prefetch(BlockingQueue<Portion> free, BlockingQueue<Portion> filled) {
+        try {
+            while (true) {
+                Portion portion = free.take();
+                portion.size = readBytePortion(portion.buffer, bufferSize);
+                filled.put(portion);
+                if (portion.size <= 0) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // cancelled by executeReadAhead
+        }
+    }
+
+    private RC drainPortions(BlockingQueue<Portion> free, BlockingQueue<Portion> filled) {
+        while (!isEnd) {
+            Portion portion;
+            try {
+                portion = filled.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return RC.CODE_FAILED_TO_READ;
+            }
+
+            int bytesRead = portion.size;
+            if (bytesRead > 0) {
+                outData.PushBack(portion.buffer, bytesRead);
+            }
+            free.add(portion);
+
+            if (bytesRead < 0) {
+                logger.warning("Cant read");
+                return RC.CODE_FAILED_TO_READ;
+            }
+            if (bytesRead == 0)
+                isEnd = true;
+
+            while (!outData.IsEmpty()) {
+                RC rc = consumer.execute();
+                if (rc != RC.CODE_SUCCESS) {
+                    logger.severe("error while executing reader consumer");
+                    return rc;
+                }
+            }
+        }
+
+        return finish();
+    }
+
+    private RC finish() {
+        RC rc = consumer.execute();
+        if (rc != RC.CODE_SUCCESS) {
+            logger.severe("error while finishing reader consumer");
+        }
+        return rc;
+    }
+
+    private RC executeMapped() {
+        FileChannel channel = stream.getChannel();
+        try {
+            long fileSize = channel.size();
+            long position = channel.position();
+            if (rangeRemaining >= 0) {
+                fileSize = Math.min(fileSize, position + rangeRemaining);
+            }
+
+            while (position < fileSize) {
+                long windowSize = Math.min(mapWindowSize, fileSize - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                position += windowSize;
+
+                while (window.hasRemaining()) {
+                    int portion = Math.min(bufferSize, window.remaining());
+                    if (isBufferConsumer) {
+                        mappedChunk = window.slice(window.position(), portion);
+                        window.position(window.position() + portion);
+                    }
+                    else {
+                        outData.PushBack(window, portion);
+                    }
+
+                    do {
+                        RC rc = consumer.execute();
+                        if (rc != RC.CODE_SUCCESS) {
+                            logger.severe("error while executing reader consumer");
+                            return rc;
+                        }
+                    } while (!outData.IsEmpty());
+                    mappedChunk = null;
+                }
+            }
+            channel.position(position);
+        } catch (IOException ex) {
+            logger.severe("IOexception while mapping input");
+            return RC.CODE_FAILED_TO_READ;
+        }
+
+        isEnd = true;
+        return finish();
+    }
+
+    @Override
+    public void close() {
+        outData.Free();
+    }
+}
@@ -0,0 +1,16 @@
+package ru.spbstu.akirillova.utils;
+
+import ru.spbstu.pipeline.RC;
+
+public interface IByteSubstitution {
+    /**
+     * Returns a copy of the 256-entry table the step applies to every byte, or null
+     * when the step is not a pure byte-to-byte substitution.
+     */
+    byte[] getByteMapping();
+
+    /**
+     * Replaces the step's table, used to run several composed substitutions in one pass.
+     */
+    RC setByteMapping(byte[] mapping);
+}
@@ -1,13 +1,21 @@
 package ru.spbstu.akirillova.workers;
 
+import ru.spbstu.akirillova.utils.BufferPool;
 import ru.spbstu.akirillova.utils.Data;
+import ru.spbstu.akirillova.utils.IBufferMediator;
+import ru.spbstu.akirillova.utils.IBufferProducer;
+import ru.spbstu.akirillova.utils.IPositionalWriter;
+import ru.spbstu.akirillova.utils.IReusableStep;
 import ru.spbstu.pipeline.*;
 import ru.spbstu.akirillova.config.SemanticsBase;
 import ru.spbstu.akirillova.config.Config;
 import ru.spbstu.akirillova.utils.PipelineBaseGrammar;
 
+import java.io.Closeable;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.logging.Logger;
 
 class WriterGrammar extends PipelineBaseGrammar {
@@ -54,6 +62,26 @@ class WriterSemantics extends SemanticsBase {
         if (fieldName.equals(Fields.BUFFER_SIZE.toString())) {
             return SemanticsBase.IsPositiveInt(fieldValue);
         }
+        else if (fieldName.equals(Fields.WRITE_MODE.toString())) {
+            if (WriteMode.fromString(fieldValue) != null) {
+                return true;
+            }
+            GetLogger().warning("Unknown write mode " + fieldValue);
+            return false;
+        }
+        else if (fieldName.equals(Fields.FLUSH_THRESHOLD.toString())) {
+            return SemanticsBase.IsPositiveInt(fieldValue);
+        }
+        else if (fieldName.equals(Fields.WRITE_QUEUE.toString())) {
+            return SemanticsBase.IsPositiveInt(fieldValue);
+        }
+        else if (fieldName.equals(Fields.FSYNC.toString())) {
+            if (FsyncPolicy.fromString(fieldValue) != null) {
+                return true;
+            }
+            GetLogger().warning("Unknown fsync policy " + fieldValue);
+            return false;
+        }
         else {
             GetLogger().warning("Unknown field " + fieldName);
         }
@@ -61,7 +89,11 @@ class WriterSemantics extends SemanticsBase {
     }
 
     public enum Fields {
-        BUFFER_SIZE("buffer_size");
+        BUFFER_SIZE("buffer_size"),
+        WRITE_MODE("write_mode"),
+        FLUSH_THRESHOLD("flush_threshold"),
+        WRITE_QUEUE("write_queue"),
+        FSYNC("fsync");
 
         private final String name;
 
@@ -73,10 +105,40 @@ class WriterSemantics extends SemanticsBase {
             return this.name;
         }
     }
+
+    public enum WriteMode {
+        STREAM("stream"),
+        CHANNEL("channel"),
+        BEHIND("behind");
+
+        private final String name;
+
+        WriteMode(String name) {
+            this.name = name;
+        }
+
+        public static WriteMode fromString(String name) {
+            for (WriteMode mode : values()) {
+                if (mode.name.equals(name)) {
+                    return mode;
+                }
+            }
+            return null;
+        }
+
+        public String toString() {
+            return this.name;
+        }
+    }
 }
 
-public class FileWriter implements IWriter {
+public class FileWriter implements IWriter, IPositionalWriter, IReusableStep, Closeable {
+    private static final int DEFAULT_FLUSH_THRESHOLD = 1024 * 1024;
+    private static final int WRITE_SEGMENTS = 8;
+    private static final int DEFAULT_WRITE_QUEUE = 4;
+
     private FileOutputStream stream;
+    private FileChannel channel;
 
     private IProducer producer;
     private IConsumer consumer;
@@ -85,12 +147,23 @@ public class FileWriter implements IWriter {
 
     private int bufferSize;
 
+    private WriterSemantics.WriteMode writeMode = WriterSemantics.WriteMode.STREAM;
+    private int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+
+    private ByteBuffer[] segments;
+    private int currentSegment;
+
+    private int writeQueue = DEFAULT_WRITE_QUEUE;
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+    private WriteBehind writeBehind;
+
     private Data outData;
 
     private final TYPE[] inTypes = {TYPE.BYTE, TYPE.CHAR, TYPE.SHORT};
 
     private IMediator mediator;
     private TYPE mediatorType;
+    private IBufferMediator bufferMediator;
 
     public FileWriter(Logger logger) {
         this.logger = logger;
@@ -107,6 +180,26 @@ public class FileWriter implements IWriter {
         return RC.CODE_SUCCESS;
     }
 
+    // Every write mode goes through the stream's descriptor, so they all continue from here
+    @Override
+    public RC setPosition(long position) {
+        if (stream == null) {
+            logger.warning("Invalid output stream");
+            return RC.CODE_INVALID_OUTPUT_STREAM;
+        }
+        if (position < 0) {
+            logger.warning("Invalid output position");
+            return RC.CODE_INVALID_ARGUMENT;
+        }
+        try {
+            stream.getChannel().position(position);
+        } catch (IOException ex) {
+            logger.severe("IOexception while seeking output");
+            return RC.CODE_FAILED_TO_WRITE;
+        }
+        return RC.CODE_SUCCESS;
+    }
+
     @Override
     public RC setConsumer(IConsumer newConsumer) {
         consumer = newConsumer;
@@ -119,6 +212,14 @@ public class FileWriter implements IWriter {
             logger.warning("Invalid producer");
             return RC.CODE_INVALID_ARGUMENT;
         }
+
+        if (newProducer instanceof IBufferProducer) {
+            bufferMediator = ((IBufferProducer) newProducer).getBufferMediator();
+            if (bufferMediator != null) {
+                return RC.CODE_SUCCESS;
+            }
+        }
+
         TYPE[] prodTypes = newProducer.getOutputTypes();
 
         for (TYPE p : prodTypes) {
@@ -149,6 +250,56 @@ public class FileWriter implements IWriter {
 
         this.bufferSize = bufferSize;
 
+        String writeMode = cfg.GetParameter(WriterSemantics.Fields.WRITE_MODE.toString());
+        if (writeMode != null) {
+            this.writeMode = WriterSemantics.WriteMode.fromString(writeMode);
+        }
+
+        if (cfg.GetParameter(WriterSemantics.Fields.FLUSH_THRESHOLD.toString()) != null) {
+            Integer flushThreshold = cfg.GetIntParameter(WriterSemantics.Fields.FLUSH_THRESHOLD.toString());
+            assert flushThreshold != null;
+            this.flushThreshold = flushThreshold;
+        }
+
+        if (cfg.GetParameter(WriterSemantics.Fields.WRITE_QUEUE.toString()) != null) {
+            Integer writeQueue = cfg.GetIntParameter(WriterSemantics.Fields.WRITE_QUEUE.toString());
+            assert writeQueue != null;
+            this.writeQueue = writeQueue;
+        }
+
+        String fsyncPolicy = cfg.GetParameter(WriterSemantics.Fields.FSYNC.toString());
+        if (fsyncPolicy != null) {
+            this.fsyncPolicy = FsyncPolicy.fromString(fsyncPolicy);
+        }
+
+        if (this.writeMode == WriterSemantics.WriteMode.CHANNEL) {
+            int segmentSize = Math.max(1, (this.flushThreshold + WRITE_SEGMENTS - 1) / WRITE_SEGMENTS);
+            segments = new ByteBuffer[WRITE_SEGMENTS];
+            for (int i = 0; i < segments.length; ++i) {
+                segments[i] = BufferPool.DIRECT.Borrow(segmentSize);
+            }
+            currentSegment = 0;
+        }
+
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public RC reset() {
+        // the previous stream has ended one way or another, its failures are not the next one's
+        if (writeBehind != null) {
+            writeBehind.discard();
+            writeBehind = null;
+        }
+        if (segments != null) {
+            for (ByteBuffer segment : segments) {
+                segment.clear();
+            }
+            currentSegment = 0;
+        }
+        stream = null;
+        channel = null;
+        outData.Clear();
         return RC.CODE_SUCCESS;
     }
 
@@ -162,7 +313,7 @@ public class FileWriter implements IWriter {
                 return (byte[]) data;
             case SHORT:
                 short[] shorts = (short[]) data;
-                byte[] bytes = new byte[shorts.length * 2];
+                byte[] bytes = BufferPool.BYTES.Borrow(shorts.length * 2);
                 for (int i = 0; i < shorts.length * 2; i++) {
                     bytes[i] = (byte) (shorts[i / 2] >> 8);
                     bytes[i + 1] = (byte) (shorts[i / 2] & 0xFF);
@@ -174,19 +325,50 @@ public class FileWriter implements IWriter {
         }
     }
 
+    private void releaseInput(Object obj, byte[] bytes) {
+        BufferPool.BYTES.Release(bytes);
+        if (mediatorType == TYPE.SHORT) {
+            BufferPool.SHORTS.Release((short[]) obj);
+        }
+    }
+
     @Override
     public RC execute() {
+        if (stream == null) {
+            logger.severe("Invalid output stream");
+            return RC.CODE_INVALID_OUTPUT_STREAM;
+        }
+
+        if (bufferMediator != null) {
+            return executeBuffered();
+        }
+
         Object obj = mediator.getData();
 
+        if (writeMode == WriterSemantics.WriteMode.BEHIND) {
+            if (obj == null)
+                return writeBehind().finish();
+            byte[] bytes = GetBytes(obj);
+            RC rc = writeBehind().write(ByteBuffer.wrap(bytes));
+            releaseInput(obj, bytes);
+            return rc;
+        }
+
+        if (writeMode == WriterSemantics.WriteMode.CHANNEL) {
+            if (obj == null)
+                return flushSegments();
+            byte[] bytes = GetBytes(obj);
+            RC rc = writeToSegments(ByteBuffer.wrap(bytes));
+            releaseInput(obj, bytes);
+            return rc;
+        }
+
         if (obj == null)
             return  RC.CODE_SUCCESS;
 
-        outData.PushBack(GetBytes(obj));
-
-        if (stream == null) {
-            logger.severe("Invalid output stream");
-            return RC.CODE_INVALID_OUTPUT_STREAM;
-        }
+        byte[] bytes = GetBytes(obj);
+        outData.PushBack(bytes);
+        releaseInput(obj, bytes);
 
         try {
             byte[] data = outData.ExtractBytes();
@@ -195,6 +377,7 @@ public class FileWriter implements IWriter {
             }
             int lastChunkSize = data.length % bufferSize == 0 ? bufferSize : data.length % bufferSize;
             stream.write(data, data.length - lastChunkSize, lastChunkSize);
+            BufferPool.BYTES.Release(data);
         }
         catch (IOException ex) {
             logger.severe("IOexception while writing");
@@ -202,4 +385,111 @@ public class FileWriter implements IWriter {
         }
         return RC.CODE_SUCCESS;
     }
-}
\ No newline at end of file
+
+    private RC executeBuffered() {
+        ByteBuffer in = bufferMediator.getBuffer();
+
+        RC rc;
+        if (writeMode == WriterSemantics.WriteMode.BEHIND) {
+            rc = (in == null) ? writeBehind().finish() : writeBehind().write(in);
+        }
+        else if (writeMode == WriterSemantics.WriteMode.CHANNEL) {
+            rc = (in == null) ? flushSegments() : writeToSegments(in);
+        }
+        else {
+            rc = (in == null) ? RC.CODE_SUCCESS : writeToChannel(in);
+        }
+
+        if (in != null) {
+            bufferMediator.release();
+        }
+        return rc;
+    }
+
+    private WriteBehind writeBehind() {
+        if (writeBehind == null) {
+            writeBehind = new WriteBehind(stream.getChannel(), flushThreshold, writeQueue, fsyncPolicy, logger);
+        }
+        return writeBehind;
+    }
+
+    private RC writeToChannel(ByteBuffer data) {
+        if (channel == null) {
+            channel = stream.getChannel();
+        }
+
+        try {
+            while (data.hasRemaining()) {
+                int portion = Math.min(bufferSize, data.remaining());
+                ByteBuffer chunk = data.slice(data.position(), portion);
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+                data.position(data.position() + portion);
+            }
+        }
+        catch (IOException ex) {
+            logger.severe("IOexception while writing");
+            return RC.CODE_FAILED_TO_WRITE;
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    private RC writeToSegments(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            ByteBuffer segment = segments[currentSegment];
+            int portion = Math.min(segment.remaining(), data.remaining());
+            segment.put(data.slice(data.position(), portion));
+            data.position(data.position() + portion);
+
+            if (!segment.hasRemaining() && ++currentSegment == segments.length) {
+                RC rc = flushSegments();
+                if (rc != RC.CODE_SUCCESS) {
+                    return rc;
+                }
+            }
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    private RC flushSegments() {
+        if (channel == null) {
+            channel = stream.getChannel();
+        }
+
+        long pending = 0;
+        for (ByteBuffer segment : segments) {
+            segment.flip();
+            pending += segment.remaining();
+        }
+
+        try {
+            while (pending > 0) {
+                pending -= channel.write(segments);
+            }
+        }
+        catch (IOException ex) {
+            logger.severe("IOexception while writing");
+            return RC.CODE_FAILED_TO_WRITE;
+        }
+        finally {
+            for (ByteBuffer segment : segments) {
+                segment.clear();
+            }
+            currentSegment = 0;
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    @Override
+    public void close() {
+        if (segments != null) {
+            for (ByteBuffer segment : segments) {
+                segment.clear();
+                BufferPool.DIRECT.Release(segment);
+            }
+            segments = null;
+        }
+        outData.Free();
+    }
+}
@@ -0,0 +1,26 @@
+package ru.spbstu.akirillova.workers;
+
+enum FsyncPolicy {
+    NONE("none"),
+    END("end"),
+    ALWAYS("always");
+
+    private final String name;
+
+    FsyncPolicy(String name) {
+        this.name = name;
+    }
+
+    public static FsyncPolicy fromString(String name) {
+        for (FsyncPolicy policy : values()) {
+            if (policy.name.equals(name)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+
+    public String toString() {
+        return this.name;
+    }
+}
@@ -0,0 +1,202 @@
+package ru.spbstu.akirillova.workers;
+
+import ru.spbstu.akirillova.utils.BufferPool;
+import ru.spbstu.pipeline.RC;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+class WriteBehind {
+
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    static class Block {
+        final byte[] buffer;
+        final int size;
+
+        Block(byte[] buffer, int size) {
+            this.buffer = buffer;
+            this.size = size;
+        }
+    }
+
+    private static final Block END = new Block(null, 0);
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final BlockingQueue<Block> queue;
+    private final Thread ioThread;
+
+    private final Logger logger;
+
+    private byte[] current;
+    private int currentSize;
+
+    private volatile IOException deferredError;
+    private boolean isFinished;
+
+    WriteBehind(FileChannel channel, int blockSize, int queueCapacity,
+                FsyncPolicy fsyncPolicy, Logger logger) {
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.fsyncPolicy = fsyncPolicy;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.logger = logger;
+
+        ioThread = new Thread(this::run, "writer-write-behind");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    public RC write(ByteBuffer data) {
+        if (deferredError != null) {
+            return finish();
+        }
+
+        while (data.hasRemaining()) {
+            if (current == null) {
+                current = BufferPool.BYTES.Borrow(blockSize);
+                currentSize = 0;
+            }
+
+            int portion = Math.min(blockSize - currentSize, data.remaining());
+            data.get(current, currentSize, portion);
+            currentSize += portion;
+
+            if (currentSize == blockSize) {
+                RC rc = enqueue(new Block(current, currentSize));
+                current = null;
+                if (rc != RC.CODE_SUCCESS) {
+                    return rc;
+                }
+            }
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    public RC finish() {
+        if (isFinished) {
+            return deferredError == null ? RC.CODE_SUCCESS : RC.CODE_FAILED_TO_WRITE;
+        }
+        isFinished = true;
+
+        if (current != null) {
+            if (currentSize > 0) {
+                enqueue(new Block(current, currentSize));
+            }
+            else {
+                BufferPool.BYTES.Release(current);
+            }
+            current = null;
+        }
+        enqueue(END);
+
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return RC.CODE_FAILED_TO_WRITE;
+        }
+
+        if (deferredError == null && fsyncPolicy != FsyncPolicy.NONE) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                deferredError = e;
+            }
+        }
+
+        if (deferredError != null) {
+            logger.severe("Deferred IOexception while writing: " + deferredError.getMessage());
+            return RC.CODE_FAILED_TO_WRITE;
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    // Stops without writing what is still queued, for a stream whose outcome no longer matters.
+    public void discard() {
+        if (isFinished) {
+            return;
+        }
+        isFinished = true;
+
+        if (current != null) {
+            BufferPool.BYTES.Release(current);
+            current = null;
+        }
+
+        ioThread.interrupt();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Block block;
+        while ((block = queue.poll()) != null) {
+            if (block != END) {
+                BufferPool.BYTES.Release(block.buffer);
+            }
+        }
+    }
+
+    private RC enqueue(Block block) {
+        try {
+            while (!queue.offer(block, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                if (!ioThread.isAlive()) {
+                    BufferPool.BYTES.Release(block.buffer);
+                    return RC.CODE_FAILED_TO_WRITE;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return RC.CODE_FAILED_TO_WRITE;
+        }
+        return RC.CODE_SUCCESS;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Block block = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (block == null) {
+                    // the run was aborted upstream and the manager closed the output stream
+                    if (!channel.isOpen()) {
+                        return;
+                    }
+                    continue;
+                }
+                if (block == END) {
+                    return;
+                }
+
+                if (deferredError == null) {
+                    try {
+                        writeFully(block);
+                        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                            channel.force(false);
+                        }
+                    } catch (IOException e) {
+                        deferredError = e;
+                    }
+                }
+                BufferPool.BYTES.Release(block.buffer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeFully(Block block) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(block.buffer, 0, block.size);
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+}